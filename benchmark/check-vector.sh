@@ -0,0 +1,18 @@
+#!/bin/sh
+#
+# Runs DebayerVectorCheck with the Vector API kernel for 128, 256 and 512 bit
+# vectors (SSE/NEON, AVX2, AVX-512). Each run fails if the kernel is not
+# loaded or not bit-exact to the scalar kernel. Vector sizes the CPU does not
+# have fall back to its largest one.
+#
+# usage: ./check-vector.sh   (after building bin/ with ../src-jdk16, see README.md)
+#
+
+set -e
+
+cd "$(dirname "$0")"
+
+for size in 16 32 64; do
+  echo "MaxVectorSize=$size"
+  java -XX:MaxVectorSize=$size --add-modules jdk.incubator.vector -cp "bin:lib/*" com.thomasdiewald.ps3eye.DebayerVectorCheck vector
+done
@@ -0,0 +1,34 @@
+#!/bin/sh
+#
+# Downloads the jars needed to build and run the benchmarks from Maven
+# Central into ./lib, see README.md.
+#
+# usage: ./get-lib.sh [libusb4java-classifier]
+#        classifier of the native libusb4java jar, default linux-x86-64
+#        (e.g. windows-x86-64, osx-x86-64, linux-aarch64)
+#
+
+set -e
+
+REPO=https://repo1.maven.org/maven2
+NATIVE=${1:-linux-x86-64}
+
+cd "$(dirname "$0")"
+mkdir -p lib
+
+# group artifact version [classifier]
+get() {
+  jar="$2-$3${4:+-$4}.jar"
+  if [ ! -f "lib/$jar" ]; then
+    echo "lib/$jar"
+    curl -fsSL -o "lib/$jar" "$REPO/$(echo "$1" | tr . /)/$2/$3/$jar"
+  fi
+}
+
+get org.openjdk.jmh       jmh-core                 1.37
+get org.openjdk.jmh       jmh-generator-annprocess 1.37
+get net.sf.jopt-simple    jopt-simple              5.0.4
+get org.apache.commons    commons-math3            3.6.1
+get org.usb4java          usb4java                 1.3.0
+get org.usb4java          libusb4java              1.3.0 "$NATIVE"
+get org.processing        core                     3.3.7
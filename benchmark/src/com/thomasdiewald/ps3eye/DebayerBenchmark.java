@@ -0,0 +1,92 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * 
+ * FrameQueue.Debayer() and DebayerARGB(), serial and on the common pool.
+ * Fails if the kernel in use is not bit-exact to the scalar one, see 
+ * DebayerVectorCheck.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DebayerBenchmark {
+  
+  @Param({"VGA", "QVGA"})
+  public PS3Eye.Resolution resolution;
+  
+  @Param({"RGB", "BGR"})
+  public PS3Eye.Format format;
+  
+  @Param({"false", "true"})
+  public boolean parallel;
+  
+  FrameQueue queue;
+  byte[]     rgb;
+  int[]      argb;
+  
+  @Setup
+  public void setup(){
+    String mismatch = DebayerVectorCheck.check();
+    if(mismatch != null){
+      throw new IllegalStateException("Debayer kernel is not bit-exact to the scalar kernel: " + mismatch);
+    }
+    
+    queue = new FrameQueue();
+    queue.resize(resolution.num_pixels, 2);
+    queue.debayer_pool = parallel ? ForkJoinPool.commonPool() : null;
+    new Random(0).nextBytes(queue.frame_buffer);
+    
+    rgb  = new byte[resolution.num_pixels * 3];
+    argb = new int [resolution.num_pixels];
+  }
+
+  @Benchmark
+  public byte[] debayer(){
+    queue.Debayer(resolution.w, resolution.h, 0, rgb, format == PS3Eye.Format.BGR);
+    return rgb;
+  }
+  
+  @Benchmark
+  public int[] debayerARGB(){
+    queue.DebayerARGB(resolution.w, resolution.h, 0, argb, format == PS3Eye.Format.BGR);
+    return argb;
+  }
+
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ *
+ * src  - https://github.com/diwi/PS3Eye
+ *
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ *
+ *
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ *
+ * Checks that the Debayer kernel in use (Debayer.KERNEL, the Vector API
+ * kernel if it is loaded) is bit-exact to Debayer.SCALAR: RGB, BGR, packed
+ * ARGB and ABGR, with and without vertical flip, for whole frames, row bands
+ * and the ByteBuffer conversion. Pixels outside of a band must stay
+ * untouched.<br>
+ * <br>
+ * Run by DebayerBenchmark before measuring, or standalone:
+ *
+ * <pre>
+ *   java --add-modules jdk.incubator.vector -cp "bin:lib/*" com.thomasdiewald.ps3eye.DebayerVectorCheck [vector]
+ * </pre>
+ *
+ * With "vector" the check also fails if the scalar kernel is in use, e.g.
+ * because the Vector API kernel did not load for the vector size of the
+ * machine (see -XX:MaxVectorSize, and check-vector.sh).
+ *
+ * @author Thomas Diewald
+ *
+ */
+public class DebayerVectorCheck {
+
+  static final private int[][] SIZES = {
+    { 640, 480 }, { 320, 240 }, { 4, 4 }, { 6, 5 }, { 18, 7 }, { 34, 6 }, { 66, 9 }, { 130, 8 }, { 15, 9 },
+  };
+
+  /**
+   * @return null if the kernels match, otherwise a description of the
+   *         first mismatch
+   */
+  static public String check(){
+    Random random = new Random(0);
+
+    for(int[] size : SIZES){
+      int w = size[0];
+      int h = size[1];
+      for(int pattern = 0; pattern < 4; pattern++){
+        byte[] bayer = new byte[w * h + 7];
+        if(pattern == 0) random.nextBytes(bayer);
+        if(pattern == 1) Arrays.fill(bayer, (byte) 0xFF);
+        if(pattern == 3) for(int i = 0; i < bayer.length; i++) bayer[i] = (byte) ((i & 1) * 0xFF);
+
+        for(int ptr = 0; ptr < 2; ptr++){
+          for(int flip = 0; flip < 2; flip++){
+            for(int bgr = 0; bgr < 2; bgr++){
+              String name = w+"x"+h+" pattern="+pattern+" ptr="+ptr+" flip="+(flip == 1)+" bgr="+(bgr == 1);
+
+              // whole frame, and a random band
+              int band_start = random.nextInt(h - 1);
+              int band_end   = band_start + 1 + random.nextInt(h - 1 - band_start);
+              int[][] bands = { { 0, h - 2 }, { band_start, Math.min(band_end, h - 2) } };
+              for(int[] band : bands){
+                byte[] rgb_ref = new byte[w * h * 3];
+                byte[] rgb     = new byte[w * h * 3];
+                Arrays.fill(rgb_ref, (byte) 0x5A);
+                Arrays.fill(rgb    , (byte) 0x5A);
+                Debayer.SCALAR.rgbRows(bayer, ptr, w, h, flip == 1, rgb_ref, bgr == 1, band[0], band[1]);
+                Debayer.KERNEL.rgbRows(bayer, ptr, w, h, flip == 1, rgb    , bgr == 1, band[0], band[1]);
+                int idx = mismatch(rgb_ref, rgb);
+                if(idx != -1){
+                  return "rgbRows "+name+" rows ["+band[0]+", "+band[1]+") differ at pixel "+(idx / 3);
+                }
+
+                int[] argb_ref = new int[w * h];
+                int[] argb     = new int[w * h];
+                Arrays.fill(argb_ref, 0x5A5A5A5A);
+                Arrays.fill(argb    , 0x5A5A5A5A);
+                Debayer.SCALAR.argbRows(bayer, ptr, w, h, flip == 1, argb_ref, bgr == 1, band[0], band[1]);
+                Debayer.KERNEL.argbRows(bayer, ptr, w, h, flip == 1, argb    , bgr == 1, band[0], band[1]);
+                idx = mismatch(argb_ref, argb);
+                if(idx != -1){
+                  return "argbRows "+name+" rows ["+band[0]+", "+band[1]+") differ at pixel "+idx;
+                }
+              }
+
+              // ByteBuffer conversion, direct, against the scalar whole frame
+              byte[] rgb_ref = new byte[w * h * 3];
+              Debayer.SCALAR.rgbRows(bayer, ptr, w, h, flip == 1, rgb_ref, bgr == 1, 0, h - 2);
+              Debayer.rgbFirstLastRow(w, h, rgb_ref);
+              ByteBuffer in  = ByteBuffer.allocateDirect(bayer.length);
+              ByteBuffer out = ByteBuffer.allocateDirect(rgb_ref.length);
+              in.put(bayer);
+              Debayer.rgb(in, ptr, w, h, flip == 1, out, 0, bgr == 1);
+              byte[] rgb = new byte[rgb_ref.length];
+              out.clear();
+              out.get(rgb);
+              int idx = mismatch(rgb_ref, rgb);
+              if(idx != -1){
+                return "rgb(ByteBuffer) "+name+" differs at pixel "+(idx / 3);
+              }
+            }
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  static private int mismatch(byte[] a, byte[] b){
+    for(int i = 0; i < a.length; i++){
+      if(a[i] != b[i]) return i;
+    }
+    return -1;
+  }
+
+  static private int mismatch(int[] a, int[] b){
+    for(int i = 0; i < a.length; i++){
+      if(a[i] != b[i]) return i;
+    }
+    return -1;
+  }
+
+
+  public static void main(String[] args){
+    boolean require_vector = args.length > 0 && args[0].equals("vector");
+    String mismatch = check();
+    System.out.println("kernel: "+(Debayer.isVectorized() ? "Vector API" : "scalar"));
+    if(require_vector && !Debayer.isVectorized()){
+      System.out.println("FAILED: the Vector API kernel is not in use");
+      System.exit(1);
+    }
+    if(mismatch != null){
+      System.out.println("MISMATCH: "+mismatch);
+      System.exit(1);
+    }
+    System.out.println("bit-exact to the scalar kernel");
+  }
+
+}
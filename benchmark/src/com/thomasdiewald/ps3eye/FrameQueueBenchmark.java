@@ -0,0 +1,134 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * 
+ * FrameQueue.Enqueue() on one thread, Dequeue() on another thread that 
+ * spends "consumer_work" Blackhole tokens per frame. The producer spends
+ * "producer_work" tokens per frame, standing in for the USB transfers.<br>
+ * "enqueue" counts completed frames, "delivered" counts frames that reached
+ * the consumer, "dropped" the frames it missed (FrameInfo.getDropped()).<br>
+ * After each iteration the queue latency (frame completion to dequeue) and 
+ * the drop ratio of the iteration are printed, for comparing the policies. 
+ * depth 0 is the default depth of the policy.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameQueueBenchmark {
+  
+  @Param({"QVGA"})
+  public PS3Eye.Resolution resolution;
+  
+  @Param({"0", "4"})
+  public int depth;
+  
+  @Param({"OVERWRITE_NEWEST", "DROP_OLDEST", "LATEST", "EVERY_FRAME"})
+  public FrameQueue.Policy policy;
+  
+  @Param({"1000"})
+  public int producer_work;
+  
+  @Param({"0", "1000", "10000"})
+  public int consumer_work;
+  
+  FrameQueue queue;
+  Statistics.Snapshot last;
+  
+  @Setup
+  public void setup(){
+    queue = new FrameQueue();
+    queue.resize(resolution.num_pixels, depth > 0 ? depth : policy.default_depth);
+    queue.setPolicy(policy);
+    // never park, the producer stops when the iteration ends
+    queue.wait_for_frame_to_be_available = false;
+    last = queue.stats.snapshot();
+  }
+  
+  @TearDown(Level.Iteration)
+  public void report(){
+    Statistics.Snapshot now = queue.stats.snapshot();
+    Statistics.Snapshot it  = now.since(last);
+    last = now;
+    long completed = it.get(Statistics.Counter.FRAMES_COMPLETED);
+    long delivered = it.get(Statistics.Counter.FRAMES_DELIVERED);
+    System.out.printf("  [%s, depth %d] queue latency p50 %d us, p99 %d us, dropped %.1f %%%n",
+        policy, queue.getNumFrames(),
+        it.getPercentile(Statistics.Timing.QUEUE_LATENCY, 50) / 1000,
+        it.getPercentile(Statistics.Timing.QUEUE_LATENCY, 99) / 1000,
+        completed == 0 ? 0.0 : 100.0 * (completed - delivered) / completed);
+  }
+  
+  
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Consumer {
+    public long delivered;
+    public long dropped;
+    byte[] frame;
+  }
+
+  @Benchmark
+  @Group("queue")
+  @GroupThreads(1)
+  public int enqueue(){
+    Blackhole.consumeCPU(producer_work);
+    return queue.Enqueue(0, System.nanoTime());
+  }
+  
+  @Benchmark
+  @Group("queue")
+  @GroupThreads(1)
+  public void dequeue(Consumer consumer){
+    if(consumer.frame == null){
+      consumer.frame = new byte[resolution.num_pixels];
+    }
+    if(queue.isAvailable()){
+      queue.Dequeue(consumer.frame, resolution.w, resolution.h, PS3Eye.Format.Bayer);
+      Blackhole.consumeCPU(consumer_work);
+      consumer.delivered++;
+      consumer.dropped += queue.getFrameInfo().getDropped();
+    }
+  }
+
+}
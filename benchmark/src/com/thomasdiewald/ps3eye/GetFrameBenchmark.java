@@ -0,0 +1,97 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * 
+ * PS3Eye.getFrame(int[]) and getFrame(ByteBuffer) into direct memory, for a 
+ * camera object without a USB device, with the frames on the heap or 
+ * off-heap. Each operation publishes the producers current slot and reads it
+ * back.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetFrameBenchmark {
+  
+  @Param({"VGA", "QVGA"})
+  public PS3Eye.Resolution resolution;
+  
+  @Param({"RGB", "BGR", "Bayer"})
+  public PS3Eye.Format format;
+  
+  @Param({"false", "true"})
+  public boolean off_heap;
+  
+  PS3Eye     ps3eye;
+  int[]      pixels;
+  ByteBuffer buffer;
+  
+  @Setup
+  public void setup(){
+    ps3eye = new PS3Eye(null, 0);
+    ps3eye.resolution   = resolution;
+    ps3eye.format       = format;
+    ps3eye.is_streaming = true;
+    ps3eye.urb.frame_queue.setOffHeap(off_heap);
+    ps3eye.urb.reset(resolution.num_pixels, 2);
+    FrameQueue queue = ps3eye.urb.frame_queue;
+    byte[] bayer = new byte[queue.frame_size * queue.num_frames];
+    new Random(0).nextBytes(bayer);
+    queue.frame_store.duplicate().put(bayer);
+    
+    pixels = new int[resolution.num_pixels];
+    buffer = ByteBuffer.allocateDirect(format.getFrameSize(resolution.w, resolution.h));
+  }
+
+  @Benchmark
+  public int[] getFrame(){
+    ps3eye.urb.frame_queue.Enqueue(0, 0L);
+    ps3eye.getFrame(pixels);
+    return pixels;
+  }
+  
+  @Benchmark
+  public ByteBuffer getFrameDirect(){
+    ps3eye.urb.frame_queue.Enqueue(0, 0L);
+    buffer.clear();
+    ps3eye.getFrame(buffer);
+    return buffer;
+  }
+
+}
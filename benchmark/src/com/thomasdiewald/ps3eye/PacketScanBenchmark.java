@@ -0,0 +1,74 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * 
+ * URBDesc.pkt_scan() and frame_add(), including FrameQueue.Enqueue(), over a
+ * synthetic bulk stream. One operation is one frame.<br>
+ * The transfer size varies the number of pkt_scan() calls per frame.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketScanBenchmark {
+  
+  static final int NUM_FRAMES = 8;
+  
+  @Param({"VGA", "QVGA"})
+  public PS3Eye.Resolution resolution;
+  
+  @Param({"16384", "40960", "65536"})
+  public int transfer_size;
+  
+  URBDesc   urb;
+  UVCStream stream;
+  
+  @Setup
+  public void setup(){
+    urb = new URBDesc();
+    urb.reset(resolution.num_pixels, 2);
+    stream = new UVCStream(resolution.num_pixels, NUM_FRAMES, transfer_size);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_FRAMES)
+  public int pkt_scan(){
+    return stream.scan(urb);
+  }
+
+}
@@ -0,0 +1,172 @@
+/**
+ *
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ *
+ * src  - https://github.com/diwi/PS3Eye
+ *
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ *
+ *
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *
+ * Checks that stop() wakes every thread waiting for a frame, not only one:
+ * several consumers are parked in getFrame(), the timed getFrame() and
+ * acquireFrame() of a camera that delivers no frames (the replay of an
+ * empty recording), then stop() is called. All of them must return within
+ * a second, without a frame.
+ *
+ * <pre>
+ *   java -cp "bin:lib/*" com.thomasdiewald.ps3eye.StopWakeupCheck
+ * </pre>
+ *
+ * @author Thomas Diewald
+ *
+ */
+public class StopWakeupCheck {
+
+  static final private long RETURN_TIMEOUT_MS = 1000;
+
+  /**
+   * A consumer, waiting for one frame. got_frame is set if it got one, as far
+   * as the getFrame() variant tells.
+   */
+  static abstract private class Consumer extends Thread {
+    volatile boolean got_frame = false;
+    volatile Throwable error = null;
+
+    Consumer(String name){
+      super(name);
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        got_frame = waitForFrame();
+      } catch (Throwable e) {
+        error = e;
+      }
+    }
+
+    abstract boolean waitForFrame() throws Exception;
+  }
+
+
+  /**
+   * @return null if all consumers returned, otherwise a description of the
+   *         first one that did not
+   */
+  static public String check() throws IOException, InterruptedException {
+    File file = File.createTempFile("ps3eye_empty", ".rec");
+    file.deleteOnExit();
+    new TransferRecorder(file, PS3Eye.Resolution.QVGA.num_pixels).close();
+
+    String result;
+    result = check(file, "getFrame x2"           , false);
+    if(result != null) return result;
+    result = check(file, "getFrame/timed/acquire", true);
+    return result;
+  }
+
+
+  static private String check(File file, String name, boolean mixed) throws IOException, InterruptedException {
+    final PS3Eye ps3eye = PS3Eye.openReplay(file, false, false);
+    ps3eye.start();
+
+    PS3Eye.Resolution res = ps3eye.getResolution();
+    final int frame_size = ps3eye.getFormat().getFrameSize(res.w, res.h);
+
+    Consumer[] consumers;
+    if(mixed){
+      consumers = new Consumer[]{
+        new Consumer("getFrame"){
+          boolean waitForFrame(){
+            ps3eye.getFrame(new byte[frame_size]);
+            return false; // the recording has no frames
+          }
+        },
+        new Consumer("getFrame timed"){
+          boolean waitForFrame() throws InterruptedException {
+            return ps3eye.getFrame(new byte[frame_size], 1, TimeUnit.MINUTES);
+          }
+        },
+        new Consumer("acquireFrame"){
+          boolean waitForFrame(){
+            Frame frame = ps3eye.acquireFrame();
+            if(frame != null){
+              frame.release();
+            }
+            return frame != null;
+          }
+        },
+      };
+    } else {
+      consumers = new Consumer[2];
+      for(int i = 0; i < consumers.length; i++){
+        consumers[i] = new Consumer("getFrame " + i){
+          boolean waitForFrame(){
+            ps3eye.getFrame(new byte[frame_size]);
+            return false; // the recording has no frames
+          }
+        };
+      }
+    }
+
+    for(Consumer consumer : consumers){
+      consumer.start();
+    }
+
+    // wait until all of them are parked
+    long deadline = System.currentTimeMillis() + RETURN_TIMEOUT_MS;
+    for(Consumer consumer : consumers){
+      Thread.State state;
+      while((state = consumer.getState()) != Thread.State.WAITING && state != Thread.State.TIMED_WAITING){
+        if(System.currentTimeMillis() > deadline){
+          ps3eye.stop();
+          return name + ": " + consumer.getName() + " is not waiting, " + state;
+        }
+        Thread.sleep(1);
+      }
+    }
+
+    ps3eye.stop();
+
+    String result = null;
+    for(Consumer consumer : consumers){
+      consumer.join(RETURN_TIMEOUT_MS);
+      if(result != null){
+        continue;
+      }
+      if(consumer.isAlive()){
+        result = name + ": " + consumer.getName() + " still waiting after stop()";
+      } else if(consumer.error != null){
+        result = name + ": " + consumer.getName() + " failed, " + consumer.error;
+      } else if(consumer.got_frame){
+        result = name + ": " + consumer.getName() + " got a frame";
+      }
+    }
+    return result;
+  }
+
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    String failure = check();
+    if(failure != null){
+      System.out.println("FAILED: " + failure);
+      System.exit(1);
+    }
+    System.out.println("all consumers returned after stop()");
+  }
+
+}
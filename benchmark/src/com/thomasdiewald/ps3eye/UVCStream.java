@@ -0,0 +1,100 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+
+/**
+ * 
+ * Synthetic PS3Eye bulk stream, for feeding URBDesc.pkt_scan() without a 
+ * camera.<br>
+ * <br>
+ * Every frame is split into 2048 byte payloads, each with a 12 byte UVC 
+ * header (PTS, toggling FID, EOF on the last payload). Payloads are packed 
+ * into transfers of the given size, the last (short) payload of a frame ends
+ * its transfer, as a short bulk packet does on the bus.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class UVCStream {
+  
+  static final public int PAYLOAD_SIZE = 2048;
+  static final public int HEADER_SIZE  = 12;
+  
+  public final ByteBuffer[] transfers;
+  public final int[]        lengths;
+  public final int          num_frames;
+  
+  public UVCStream(int frame_size, int num_frames, int transfer_size){
+    this.num_frames = num_frames;
+    
+    Random random = new Random(0);
+    byte[] frame = new byte[frame_size];
+    
+    int payload_data       = PAYLOAD_SIZE - HEADER_SIZE;
+    int payloads_per_frame = (frame_size + payload_data - 1) / payload_data;
+    int payloads_per_xfr   = transfer_size / PAYLOAD_SIZE;
+    int xfrs_per_frame     = (payloads_per_frame + payloads_per_xfr - 1) / payloads_per_xfr;
+    
+    transfers = new ByteBuffer[num_frames * xfrs_per_frame];
+    lengths   = new int       [num_frames * xfrs_per_frame];
+    
+    int xfr_idx = 0;
+    for(int f = 0; f < num_frames; f++){
+      random.nextBytes(frame);
+      int pts = 1000 + f;
+      int fid = f & 1;
+      
+      int frame_ptr = 0;
+      for(int x = 0; x < xfrs_per_frame; x++){
+        ByteBuffer xfr = ByteBuffer.allocateDirect(transfer_size);
+        for(int p = 0; p < payloads_per_xfr && frame_ptr < frame_size; p++){
+          int len = Math.min(payload_data, frame_size - frame_ptr);
+          boolean eof = frame_ptr + len == frame_size;
+          
+          xfr.put((byte) HEADER_SIZE);
+          xfr.put((byte) ((1 << 2) | (eof ? (1 << 1) : 0) | fid)); // PTS, EOF, FID
+          xfr.put((byte) (pts      ));
+          xfr.put((byte) (pts >>  8));
+          xfr.put((byte) (pts >> 16));
+          xfr.put((byte) (pts >> 24));
+          for(int i = 6; i < HEADER_SIZE; i++){
+            xfr.put((byte) 0);
+          }
+          xfr.put(frame, frame_ptr, len);
+          frame_ptr += len;
+        }
+        lengths  [xfr_idx] = xfr.position();
+        transfers[xfr_idx] = xfr;
+        xfr.clear();
+        xfr_idx++;
+      }
+    }
+  }
+  
+  /**
+   * Feeds all transfers to the parser, returns the number of transfers.
+   */
+  public int scan(URBDesc urb){
+    for(int i = 0; i < transfers.length; i++){
+      urb.pkt_scan(transfers[i], lengths[i], System.nanoTime());
+    }
+    return transfers.length;
+  }
+
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ *
+ * src  - www.github.com/diwi/PS3Eye
+ *
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ *
+ */
+
+package JavaDemo;
+
+import java.util.concurrent.TimeUnit;
+
+import com.thomasdiewald.ps3eye.PS3Eye;
+
+
+/**
+ *
+ * Captures all connected cameras on a single thread, polling each with
+ * tryGetFrame(). The capture thread is stopped by an interrupt, it waits
+ * for frames with a timeout, so it never blocks on a single camera.
+ *
+ * usage: PS3Eye_MultiCapture [seconds]
+ *
+ */
+public class PS3Eye_MultiCapture {
+
+  public static void main(String[] args) throws InterruptedException {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+    final PS3Eye[] cameras = PS3Eye.getDevices();
+    if (cameras.length == 0) {
+      System.out.println("No PS3Eye connected. Good Bye!");
+      return;
+    }
+
+    for(PS3Eye camera : cameras){
+      camera.init(60, PS3Eye.Resolution.VGA, PS3Eye.Format.Gray);
+      camera.start();
+    }
+
+    final long[] frames = new long[cameras.length];
+
+    Thread capture = new Thread("PS3Eye Capture"){
+      public void run() {
+        byte[][] buffers = new byte[cameras.length][];
+        for(int i = 0; i < cameras.length; i++){
+          PS3Eye.Resolution res = cameras[i].getResolution();
+          buffers[i] = new byte[cameras[i].getFormat().getFrameSize(res.w, res.h)];
+        }
+
+        try {
+          while(true){
+            boolean any = false;
+            for(int i = 0; i < cameras.length; i++){
+              if(cameras[i].tryGetFrame(buffers[i])){
+                frames[i]++;
+                any = true;
+              }
+            }
+            // nothing new, wait for the first camera, a few ms at most
+            if(!any && cameras[0].getFrame(buffers[0], 5, TimeUnit.MILLISECONDS)){
+              frames[0]++;
+            }
+          }
+        } catch (InterruptedException e) {
+          // shutdown
+        }
+      }
+    };
+
+    capture.start();
+    Thread.sleep(seconds * 1000L);
+
+    capture.interrupt();
+    capture.join();
+
+    for(int i = 0; i < cameras.length; i++){
+      System.out.printf("camera %d: %d frames, %.1f fps\n", i, frames[i], frames[i] / (float) seconds);
+    }
+
+    PS3Eye.disposeAll();
+  }
+
+}
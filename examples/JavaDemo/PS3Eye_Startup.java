@@ -0,0 +1,97 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - www.github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ */
+
+package JavaDemo;
+
+import java.util.Locale;
+
+import com.thomasdiewald.ps3eye.PS3Eye;
+
+
+/**
+ * 
+ * Startup benchmark: time of init(), start(), the first frame and stop(),
+ * averaged over a few runs. Then the time of reconfigure() for switching 
+ * resolution and framerate of a running stream, until the first new frame.
+ * 
+ * Run it once as is and once with -Dps3eye.batch=false, to compare batched
+ * control transfers with single ones.
+ *
+ * usage: PS3Eye_Startup [runs]
+ * 
+ */
+public class PS3Eye_Startup {
+  
+  public static void main(String[] args) {
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    
+    PS3Eye ps3eye = PS3Eye.getDevice();
+    if (ps3eye == null) {
+      System.out.println("No PS3Eye connected. Good Bye!");
+      return;
+    }
+    
+    System.out.println("batched control transfers: " + System.getProperty("ps3eye.batch", "true"));
+    System.out.printf(Locale.ENGLISH, "%4s | %10s | %10s | %12s | %10s\n", "run", "init [ms]", "start [ms]", "frame [ms]", "stop [ms]");
+    
+    double[] sum = new double[4];
+    byte[] buffer = null;
+    
+    for(int i = 0; i < runs; i++){
+      long t0 = System.nanoTime();
+      ps3eye.init(60, PS3Eye.Resolution.VGA, PS3Eye.Format.Bayer);
+      long t1 = System.nanoTime();
+      ps3eye.start();
+      long t2 = System.nanoTime();
+      buffer = ps3eye.getFrame(buffer);
+      long t3 = System.nanoTime();
+      ps3eye.stop();
+      long t4 = System.nanoTime();
+      
+      double[] ms = { (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6, (t4 - t3) / 1e6 };
+      for(int k = 0; k < ms.length; k++){
+        sum[k] += ms[k];
+      }
+      System.out.printf(Locale.ENGLISH, "%4d | %10.2f | %10.2f | %12.2f | %10.2f\n", i, ms[0], ms[1], ms[2], ms[3]);
+    }
+    
+    System.out.printf(Locale.ENGLISH, "%4s | %10.2f | %10.2f | %12.2f | %10.2f\n", "mean", 
+        sum[0] / runs, sum[1] / runs, sum[2] / runs, sum[3] / runs);
+    
+    
+    System.out.printf(Locale.ENGLISH, "\n%-22s | %16s\n", "reconfigure", "+ frame [ms]");
+    
+    ps3eye.init(60, PS3Eye.Resolution.VGA, PS3Eye.Format.Bayer);
+    ps3eye.start();
+    
+    Object[][] modes = {
+        { 60, PS3Eye.Resolution.QVGA},
+        { 60, PS3Eye.Resolution.VGA },
+        { 30, PS3Eye.Resolution.VGA },
+        { 60, PS3Eye.Resolution.VGA },
+        {120, PS3Eye.Resolution.QVGA},
+        {187, PS3Eye.Resolution.QVGA},
+    };
+    for(Object[] mode : modes){
+      int               framerate  = (Integer) mode[0];
+      PS3Eye.Resolution resolution = (PS3Eye.Resolution) mode[1];
+      long t0 = System.nanoTime();
+      ps3eye.reconfigure(framerate, resolution, PS3Eye.Format.Bayer);
+      buffer = ps3eye.getFrame(buffer);
+      long t1 = System.nanoTime();
+      System.out.printf(Locale.ENGLISH, "%-22s | %16.2f\n", resolution + " @ " + ps3eye.getFramerate(), (t1 - t0) / 1e6);
+    }
+    ps3eye.stop();
+    
+    PS3Eye.disposeAll();
+  }
+
+}
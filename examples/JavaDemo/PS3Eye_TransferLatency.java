@@ -0,0 +1,131 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - www.github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ */
+
+package JavaDemo;
+
+import java.util.Locale;
+
+import com.thomasdiewald.ps3eye.FrameInfo;
+import com.thomasdiewald.ps3eye.PS3Eye;
+import com.thomasdiewald.ps3eye.Statistics;
+
+
+/**
+ * 
+ * Benchmark mode for the USB transfer settings: streams a few seconds with 
+ * each transfer size and prints how frame arrival and latency behave.
+ * 
+ *   interval  - time between two completed frames (p50 / p99)
+ *   jitter    - arrival time vs. the camera's PTS clock, after removing 
+ *               offset and drift (rms / max)
+ *   queue     - frame completion to getFrame() (mean / p99)
+ *   dropped   - frames lost on the way
+ *
+ * usage: PS3Eye_TransferLatency [framerate] [VGA|QVGA] [seconds]
+ * 
+ */
+public class PS3Eye_TransferLatency {
+  
+  static final int[] TRANSFER_SIZES = { 0, 16384, 32768, 65536, 131072 }; // 0 = auto
+  
+  public static void main(String[] args) {
+    int               framerate  = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+    PS3Eye.Resolution resolution = args.length > 1 ? PS3Eye.Resolution.valueOf(args[1]) : PS3Eye.Resolution.VGA;
+    int               seconds    = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    
+    PS3Eye ps3eye = PS3Eye.getDevice();
+    if (ps3eye == null) {
+      System.out.println("No PS3Eye connected. Good Bye!");
+      return;
+    }
+    
+    ps3eye.init(framerate, resolution, PS3Eye.Format.Bayer);
+    System.out.printf(Locale.ENGLISH, "%s @ %d fps\n\n", resolution, ps3eye.getFramerate());
+    System.out.printf(Locale.ENGLISH, "%8s %4s | %17s | %17s | %17s | %7s\n", 
+        "size", "num", "interval [ms]", "jitter [ms]", "queue [ms]", "dropped");
+    
+    byte[] buffer = null;
+    int num_frames = ps3eye.getFramerate() * seconds;
+    long[] arrival = new long[num_frames];
+    long[] pts     = new long[num_frames];
+    
+    for(int transfer_size : TRANSFER_SIZES){
+      ps3eye.setTransferSize(transfer_size);
+      ps3eye.start();
+      
+      // warmup
+      for(int i = 0; i < ps3eye.getFramerate(); i++){
+        buffer = ps3eye.getFrame(buffer);
+      }
+      
+      Statistics.Snapshot start = ps3eye.getStatistics().snapshot();
+      
+      long dropped = 0;
+      long pts_prev = 0, pts_unwrapped = 0;
+      for(int i = 0; i < num_frames; i++){
+        buffer = ps3eye.getFrame(buffer);
+        FrameInfo info = ps3eye.getFrameInfo();
+        long pts_cur = info.getPTS() & 0xFFFFFFFFL;
+        pts_unwrapped += i == 0 ? 0 : (pts_cur - pts_prev) & 0xFFFFFFFFL;
+        pts_prev = pts_cur;
+        pts    [i] = pts_unwrapped;
+        arrival[i] = info.getTimestamp();
+        dropped   += info.getDropped();
+      }
+      
+      Statistics.Snapshot delta = ps3eye.getStatistics().snapshot().since(start);
+      double[] jitter = jitter(pts, arrival);
+      
+      System.out.printf(Locale.ENGLISH, "%8d %4d | %7.3f / %7.3f | %7.3f / %7.3f | %7.3f / %7.3f | %7d\n", 
+          ps3eye.getTransferSize(), ps3eye.getNumTransfers(),
+          delta.getPercentile(Statistics.Timing.FRAME_INTERVAL, 50) / 1e6,
+          delta.getPercentile(Statistics.Timing.FRAME_INTERVAL, 99) / 1e6,
+          jitter[0] / 1e6, jitter[1] / 1e6,
+          delta.getMean      (Statistics.Timing.QUEUE_LATENCY) / 1e6,
+          delta.getPercentile(Statistics.Timing.QUEUE_LATENCY, 99) / 1e6,
+          dropped);
+      
+      ps3eye.stop();
+    }
+    
+    PS3Eye.disposeAll();
+  }
+  
+  
+  // fits arrival = a + b * pts (least squares), returns rms and max residual
+  static double[] jitter(long[] pts, long[] arrival){
+    int n = pts.length;
+    double mx = 0, my = 0;
+    for(int i = 0; i < n; i++){
+      mx += pts[i];
+      my += arrival[i] - arrival[0];
+    }
+    mx /= n;
+    my /= n;
+    
+    double sxy = 0, sxx = 0;
+    for(int i = 0; i < n; i++){
+      double dx = pts[i] - mx;
+      sxy += dx * (arrival[i] - arrival[0] - my);
+      sxx += dx * dx;
+    }
+    double b = sxx > 0 ? sxy / sxx : 0;
+    
+    double rms = 0, max = 0;
+    for(int i = 0; i < n; i++){
+      double r = Math.abs(arrival[i] - arrival[0] - my - b * (pts[i] - mx));
+      rms += r * r;
+      max  = Math.max(max, r);
+    }
+    return new double[]{ Math.sqrt(rms / n), max };
+  }
+
+}
@@ -0,0 +1,225 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * 
+ * Debayer row kernel using the Java Vector API (jdk.incubator.vector).<br>
+ * <br>
+ * Requires Java 16+ and "--add-modules jdk.incubator.vector", both at 
+ * compile time and at runtime. Debayer loads this class by name and falls 
+ * back to its scalar kernel if that fails.<br>
+ * <br>
+ * Every interior output pixel x of a row is one of four bilinear 
+ * interpolations of its 3x3 neighbourhood (a: row above, c: center row, 
+ * b: row below), the Bayer-site (row and column parity) selects which one 
+ * ends up in which channel:
+ * 
+ * <pre>
+ *   V2 = (a[x  ] + b[x  ]                     + 1) >> 1
+ *   H2 = (c[x-1] + c[x+1]                     + 1) >> 1
+ *   X4 = (a[x  ] + b[x  ] + c[x-1] + c[x+1]   + 2) >> 2
+ *   D4 = (a[x-1] + a[x+1] + b[x-1] + b[x+1]   + 2) >> 2
+ * </pre>
+ * 
+ * All four are computed for a vector of pixels and blended by column parity,
+ * in int lanes, so the result is bit-exact to the scalar kernel.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class DebayerVector implements Debayer.RowKernel {
+  
+  static final private VectorSpecies<Integer> SI = IntVector.SPECIES_PREFERRED;
+  static final private int                    VL = SI.length();
+  
+  // bytes loaded per int vector: VL, but at least 64 bits, there is no 
+  // smaller shape (e.g. 32 bits for 4 int lanes of a 128-bit SSE/NEON 
+  // vector). Only the first VL are widened.
+  static final private VectorSpecies<Byte>    SB = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, VL * 8)));
+  static final private int                    BL = SB.length();
+  
+  // packed pixels as bytes (B,G,R,A little-endian), rearranged to R,G,B triplets
+  static final private VectorSpecies<Byte>    SP = VectorSpecies.of(byte.class, SI.vectorShape());
+  static final private VectorShuffle<Byte>    ARGB_TO_RGB = VectorShuffle.fromOp(SP, k -> (k < VL * 3) ? (k / 3) * 4 + 2 - (k % 3) : 0);
+  
+  // lanes at even lane-index. Vectors always start at an odd column.
+  static final private VectorMask<Integer> ODD_COLUMN = VectorMask.fromLong(SI, 0x5555555555555555L);
+  
+  // per thread packed row for rgbRows(), which is called per row by the 
+  // ByteBuffer conversion
+  static final private ThreadLocal<int[]> ROW = ThreadLocal.withInitial(() -> new int[0]);
+  
+  public DebayerVector(){
+  }
+  
+  
+  @Override
+  public void rgbRows(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer, boolean inBGR, int row_start, int row_end) {
+    if((frame_width & 1) != 0){
+      Debayer.SCALAR.rgbRows(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, inBGR, row_start, row_end);
+      return;
+    }
+    
+    // packed row, unpacked to 3 channels
+    int[] row = ROW.get();
+    if(row.length < frame_width){
+      ROW.set(row = new int[frame_width]);
+    }
+    
+    int dest_stride = frame_width * 3;
+    for(int i = row_start; i < row_end; i++){
+      argbRow(buffer, inBayer_ptr + i * frame_width, frame_width, ((i + (flip_vert ? 1 : 0)) & 1) == 0, row, 0, inBGR);
+      
+      int dest     = (i + 1) * dest_stride;
+      int dest_end = dest + dest_stride;
+      int x = 0;
+      
+      // a vector store writes VL*4 bytes, of which VL*3 are valid, the rest 
+      // is overwritten by the next store. It must not leave the row though, 
+      // other rows may be converted concurrently.
+      for(; dest + VL * 4 <= dest_end; x += VL, dest += VL * 3){
+        IntVector.fromArray(SI, row, x).reinterpretAsBytes().rearrange(ARGB_TO_RGB).intoArray(outBuffer, dest);
+      }
+      for(; x < frame_width; x++){
+        int argb = row[x];
+        outBuffer[dest++] = (byte) (argb >> 16);
+        outBuffer[dest++] = (byte) (argb >>  8);
+        outBuffer[dest++] = (byte) (argb      );
+      }
+    }
+  }
+  
+  
+  @Override
+  public void argbRows(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels, boolean inBGR, int row_start, int row_end) {
+    if((frame_width & 1) != 0){
+      Debayer.SCALAR.argbRows(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outPixels, inBGR, row_start, row_end);
+      return;
+    }
+    
+    for(int i = row_start; i < row_end; i++){
+      argbRow(buffer, inBayer_ptr + i * frame_width, frame_width, ((i + (flip_vert ? 1 : 0)) & 1) == 0, outPixels, (i + 1) * frame_width, inBGR);
+    }
+  }
+  
+  
+  /**
+   * Converts one output row, with source rows starting at a_ptr (above), 
+   * a_ptr + w (center), a_ptr + 2 * w (below), into packed pixels.
+   */
+  private void argbRow(byte[] buffer, int a_ptr, int w, boolean green_row, int[] out, int out_ptr, boolean inBGR){
+    int c_ptr = a_ptr + w;
+    int b_ptr = c_ptr + w;
+    
+    int shift_r = inBGR ?  0 : 16;
+    int shift_b = inBGR ? 16 :  0;
+    
+    // loads read BL bytes, from x - 1 to x + BL, within the row
+    int x = 1;
+    for(; x + BL <= w - 1; x += VL){
+      IntVector a0 = load(buffer, a_ptr + x    );
+      IntVector a_ = load(buffer, a_ptr + x - 1);
+      IntVector a1 = load(buffer, a_ptr + x + 1);
+      IntVector b0 = load(buffer, b_ptr + x    );
+      IntVector b_ = load(buffer, b_ptr + x - 1);
+      IntVector b1 = load(buffer, b_ptr + x + 1);
+      IntVector c0 = load(buffer, c_ptr + x    );
+      IntVector c_ = load(buffer, c_ptr + x - 1);
+      IntVector c1 = load(buffer, c_ptr + x + 1);
+      
+      IntVector ab = a0.add(b0);
+      IntVector cc = c_.add(c1);
+      IntVector v2 = ab.add(1).lanewise(VectorOperators.ASHR, 1);
+      IntVector h2 = cc.add(1).lanewise(VectorOperators.ASHR, 1);
+      IntVector x4 = ab.add(cc).add(2).lanewise(VectorOperators.ASHR, 2);
+      IntVector d4 = a_.add(a1).add(b_).add(b1).add(2).lanewise(VectorOperators.ASHR, 2);
+      
+      IntVector r, g, b;
+      if(green_row){
+        r = d4.blend(v2, ODD_COLUMN);
+        g = x4.blend(c0, ODD_COLUMN);
+        b = c0.blend(h2, ODD_COLUMN);
+      } else {
+        r = h2.blend(c0, ODD_COLUMN);
+        g = c0.blend(x4, ODD_COLUMN);
+        b = v2.blend(d4, ODD_COLUMN);
+      }
+      
+      r.lanewise(VectorOperators.LSHL, shift_r)
+       .or(g.lanewise(VectorOperators.LSHL, 8))
+       .or(b.lanewise(VectorOperators.LSHL, shift_b))
+       .or(0xFF000000)
+       .intoArray(out, out_ptr + x);
+    }
+    
+    // remaining pixels
+    for(; x < w - 1; x++){
+      int a0 = buffer[a_ptr + x] & 0xFF, a_ = buffer[a_ptr + x - 1] & 0xFF, a1 = buffer[a_ptr + x + 1] & 0xFF;
+      int b0 = buffer[b_ptr + x] & 0xFF, b_ = buffer[b_ptr + x - 1] & 0xFF, b1 = buffer[b_ptr + x + 1] & 0xFF;
+      int c0 = buffer[c_ptr + x] & 0xFF, c_ = buffer[c_ptr + x - 1] & 0xFF, c1 = buffer[c_ptr + x + 1] & 0xFF;
+      
+      int v2 = (a0 + b0           + 1) >> 1;
+      int h2 = (c_ + c1           + 1) >> 1;
+      int x4 = (a0 + b0 + c_ + c1 + 2) >> 2;
+      int d4 = (a_ + a1 + b_ + b1 + 2) >> 2;
+      
+      boolean odd_column = (x & 1) == 1;
+      int r, g, b;
+      if(green_row){
+        r = odd_column ? v2 : d4;
+        g = odd_column ? c0 : x4;
+        b = odd_column ? h2 : c0;
+      } else {
+        r = odd_column ? c0 : h2;
+        g = odd_column ? x4 : c0;
+        b = odd_column ? d4 : v2;
+      }
+      out[out_ptr + x] = 0xFF000000 | (r << shift_r) | (g << 8) | (b << shift_b);
+    }
+    
+    // Fill first and last pixel of row (copy second and second-to-last pixel)
+    out[out_ptr        ] = out[out_ptr + 1    ];
+    out[out_ptr + w - 1] = out[out_ptr + w - 2];
+  }
+  
+  
+  // unsigned bytes, the first VL widened to int lanes
+  static private IntVector load(byte[] buffer, int ptr){
+    return (IntVector) ByteVector.fromArray(SB, buffer, ptr)
+        .convertShape(VectorOperators.B2I, SI, 0)
+        .lanewise(VectorOperators.AND, 0xFF);
+  }
+
+}
@@ -0,0 +1,183 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.usb4java.Context;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+
+/**
+ * 
+ * Queues ov534 bridge register reads and writes and submits them together
+ * as asynchronous control transfers.<br>
+ * The device executes control transfers in submission order, so a batch 
+ * has the same effect as the single transfers, but costs about one round 
+ * trip instead of one per register. Transfers and buffers are allocated 
+ * once and reused.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class ControlBatch {
+  
+  static final public int MAX_TRANSFERS = 64;
+  
+  static final private byte REQUEST_TYPE_OUT = (byte) (LibUsb.ENDPOINT_OUT | LibUsb.REQUEST_TYPE_VENDOR | LibUsb.RECIPIENT_DEVICE);
+  static final private byte REQUEST_TYPE_IN  = (byte) (LibUsb.ENDPOINT_IN  | LibUsb.REQUEST_TYPE_VENDOR | LibUsb.RECIPIENT_DEVICE);
+  static final private long TIMEOUT = 500L;
+  
+  private final DeviceHandle handle;
+  private final Context      context;
+  
+  private final Transfer[]   transfers = new Transfer  [MAX_TRANSFERS];
+  private final ByteBuffer[] buffers   = new ByteBuffer[MAX_TRANSFERS];
+  private int count = 0;
+  
+  // number of submitted transfers that have not completed yet
+  private final AtomicInteger pending = new AtomicInteger(0);
+  private final IntBuffer completed = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder()).asIntBuffer();
+  
+  // runs on whichever thread handles the libusb events
+  private final TransferCallback callback = new TransferCallback() {
+    @Override
+    public void processTransfer(Transfer transfer) {
+      if(pending.decrementAndGet() == 0){
+        completed.put(0, 1);
+      }
+    }
+  };
+  
+  
+  public ControlBatch(DeviceHandle handle, Context context){
+    this.handle  = handle;
+    this.context = context;
+  }
+  
+  
+  private int add(byte request_type, int reg){
+    if(count == MAX_TRANSFERS){
+      flush();
+    }
+    int idx = count++;
+    if(transfers[idx] == null){
+      transfers[idx] = LibUsb.allocTransfer(0);
+      buffers  [idx] = ByteBuffer.allocateDirect(LibUsb.CONTROL_SETUP_SIZE + 1);
+    }
+    ByteBuffer buffer = buffers[idx];
+    LibUsb.fillControlSetup(buffer, request_type, (byte) 0x01, (short) 0x00, (short) reg, (short) 1);
+    LibUsb.fillControlTransfer(transfers[idx], handle, buffer, callback, null, TIMEOUT);
+    return idx;
+  }
+  
+  /**
+   * Queues a bridge register write.
+   */
+  public void write(int reg, int val){
+    int idx = add(REQUEST_TYPE_OUT, reg);
+    buffers[idx].put(LibUsb.CONTROL_SETUP_SIZE, (byte) (val & 0xFF));
+  }
+  
+  /**
+   * Queues a bridge register read. The value can be read with get() after
+   * the next flush().
+   * 
+   * @return index of the read
+   */
+  public int read(int reg){
+    return add(REQUEST_TYPE_IN, reg);
+  }
+  
+  /**
+   * @return the value of a read, after flush()
+   */
+  public int get(int idx){
+    return buffers[idx].get(LibUsb.CONTROL_SETUP_SIZE) & 0xFF;
+  }
+  
+  
+  /**
+   * Submits all queued transfers and waits until they are completed.
+   */
+  public void flush(){
+    int num = count;
+    count = 0;
+    if(num == 0){
+      return;
+    }
+    
+    completed.put(0, 0);
+    pending.set(num);
+    
+    int rval = 0;
+    for(int i = 0; i < num; i++){
+      rval = LibUsb.submitTransfer(transfers[i]);
+      if(rval != 0){
+        // the remaining ones never reach the callback
+        if(pending.addAndGet(i - num) == 0){
+          completed.put(0, 1);
+        }
+        num = i;
+        break;
+      }
+    }
+    
+    // The events are handled here, or by the USB-thread if it is running.
+    // Either way the callback sets "completed" and wakes this thread.
+    while(pending.get() > 0){
+      LibUsb.handleEventsTimeoutCompleted(context, 50 * 1000, completed);
+    }
+    
+    if(rval != 0){
+      throw new LibUsbException("error ControlBatch.flush, LibUsb.submitTransfer", rval);
+    }
+    for(int i = 0; i < num; i++){
+      if(transfers[i].status() != LibUsb.TRANSFER_COMPLETED){
+        throw new LibUsbException("error ControlBatch.flush, transfer status " + transfers[i].status(), LibUsb.ERROR_IO);
+      }
+    }
+  }
+  
+  
+  public void release(){
+    count = 0;
+    for(int i = 0; i < MAX_TRANSFERS; i++){
+      if(transfers[i] != null){
+        LibUsb.freeTransfer(transfers[i]);
+        transfers[i] = null;
+        buffers  [i] = null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,997 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * 
+ * Bayer (GRBG) to RGB/BGR conversion, bilinear.<br>
+ * <br>
+ * Gray output is the BT.601 luma (77*R + 150*G + 29*B + 128) >> 8 of the 
+ * same bilinear colors, computed in the same pass, without an RGB buffer.<br>
+ * <br>
+ * YUV 4:2:0 output (I420, NV12) uses the BT.601 video range: Y is the luma of
+ * the bilinear colors, U and V are computed from the colors of each 2x2 
+ * Bayer quad (R, average of both G, B), which is exactly one chroma sample.<br>
+ * <br>
+ * rgb(ByteBuffer, ..) converts between ByteBuffers, e.g. off-heap frames into
+ * direct memory, row by row through small heap rows.<br>
+ * <br>
+ * The conversion of an output row only depends on its three source rows, so
+ * the frame can be processed in independent row bands. The first and the 
+ * last output row are copies of their neighbours and are filled after all 
+ * bands are done.<br>
+ * <br>
+ * The rows are converted by a RowKernel. If the class DebayerVector (Java 
+ * Vector API, see src-jdk16) can be loaded it is used, otherwise the scalar 
+ * kernel of this class. Both produce identical output. The system property 
+ * "ps3eye.vector=false" forces the scalar kernel.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class Debayer {
+
+  static final private int UB = 0xFF;
+  
+  // minimum number of rows per fork-join task
+  static final protected int ROWS_PER_TASK = 16;
+  
+  // per thread intermediate rows, for the kernels that need one
+  static final private int SCRATCH_LUMA     = 0;
+  static final private int SCRATCH_ROWS_IN  = 1;
+  static final private int SCRATCH_ROWS_OUT = 2;
+  static final private ThreadLocal<byte[][]> scratch = new ThreadLocal<byte[][]>() {
+    protected byte[][] initialValue() {
+      return new byte[3][0];
+    }
+  };
+  
+  
+  /**
+   * Converts a range of rows, see rgbRows() and argbRows().
+   */
+  static protected interface RowKernel {
+    void rgbRows (byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer, boolean inBGR, int row_start, int row_end);
+    void argbRows(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[]  outPixels, boolean inBGR, int row_start, int row_end);
+  }
+  
+  static final protected RowKernel SCALAR = new RowKernel() {
+    @Override
+    public void rgbRows(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer, boolean inBGR, int row_start, int row_end) {
+      Debayer.rgbRows(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, inBGR, row_start, row_end);
+    }
+    @Override
+    public void argbRows(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels, boolean inBGR, int row_start, int row_end) {
+      Debayer.argbRows(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outPixels, inBGR, row_start, row_end);
+    }
+  };
+  
+  static final protected RowKernel KERNEL = loadKernel();
+  
+  static private RowKernel loadKernel(){
+    if(!Boolean.parseBoolean(System.getProperty("ps3eye.vector", "true"))){
+      return SCALAR;
+    }
+    try {
+      return (RowKernel) Class.forName("com.thomasdiewald.ps3eye.DebayerVector").getDeclaredConstructor().newInstance();
+    } catch (Throwable e) {
+      // not on the classpath, Java < 16, or jdk.incubator.vector not added
+      return SCALAR;
+    }
+  }
+  
+  /**
+   * @return true, if the Vector API kernel is used
+   */
+  static public boolean isVectorized(){
+    return KERNEL != SCALAR;
+  }
+  
+  
+  /**
+   * Converts a whole Bayer frame, on the calling thread.
+   */
+  static public void rgb(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer, boolean inBGR){
+    KERNEL.rgbRows(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, inBGR, 0, frame_height - 2);
+    rgbFirstLastRow(frame_width, frame_height, outBuffer);
+  }
+  
+  
+  /**
+   * Converts a whole Bayer frame, split into row bands that are processed 
+   * by the given pool. The result is identical to the serial conversion.
+   */
+  static public void rgb(ForkJoinPool pool, byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer, boolean inBGR){
+    pool.invoke(new RgbBand(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, inBGR, 0, frame_height - 2));
+    rgbFirstLastRow(frame_width, frame_height, outBuffer);
+  }
+  
+  
+  /**
+   * Converts a whole Bayer frame into packed 0xAARRGGBB (or 0xAABBGGRR for 
+   * inBGR) pixels, on the calling thread.
+   */
+  static public void argb(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels, boolean inBGR){
+    KERNEL.argbRows(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outPixels, inBGR, 0, frame_height - 2);
+    argbFirstLastRow(frame_width, frame_height, outPixels);
+  }
+  
+  
+  /**
+   * Converts a whole Bayer frame into packed 0xAARRGGBB (or 0xAABBGGRR for 
+   * inBGR) pixels, split into row bands that are processed by the given pool.
+   */
+  static public void argb(ForkJoinPool pool, byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels, boolean inBGR){
+    pool.invoke(new ArgbBand(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outPixels, inBGR, 0, frame_height - 2));
+    argbFirstLastRow(frame_width, frame_height, outPixels);
+  }
+  
+  
+  /**
+   * Expands Bayer values to gray 0xAAVVVVVV pixels.
+   */
+  static public void bayerARGB(byte[] buffer, int inBayer_ptr, int num_pixels, int[] outPixels){
+    for(int i = 0; i < num_pixels; i++){
+      int bayer = buffer[inBayer_ptr + i] & UB;
+      outPixels[i] = 0xFF000000 | (bayer<<16) | (bayer<<8) | bayer;
+    }
+  }
+  
+  
+  
+  // splits a range of rows into bands until they are small enough
+  static private abstract class Band extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    final int row_start, row_end;
+    
+    Band(int row_start, int row_end){
+      this.row_start = row_start;
+      this.row_end   = row_end;
+    }
+    
+    abstract protected Band band(int row_start, int row_end);
+    abstract protected void rows(int row_start, int row_end);
+
+    @Override
+    protected void compute() {
+      int num_rows = row_end - row_start;
+      if(num_rows <= ROWS_PER_TASK){
+        rows(row_start, row_end);
+      } else {
+        int row_mid = row_start + num_rows / 2;
+        invokeAll(band(row_start, row_mid), band(row_mid, row_end));
+      }
+    }
+  }
+  
+  
+  static private class RgbBand extends Band {
+    private static final long serialVersionUID = 1L;
+    
+    final byte[] buffer; final int inBayer_ptr; final int frame_width, frame_height;
+    final boolean flip_vert;
+    final byte[] outBuffer; final boolean inBGR;
+    
+    RgbBand(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer, boolean inBGR, int row_start, int row_end){
+      super(row_start, row_end);
+      this.buffer       = buffer;
+      this.inBayer_ptr  = inBayer_ptr;
+      this.frame_width  = frame_width;
+      this.frame_height = frame_height;
+      this.flip_vert    = flip_vert;
+      this.outBuffer    = outBuffer;
+      this.inBGR        = inBGR;
+    }
+    
+    @Override
+    protected Band band(int row_start, int row_end) {
+      return new RgbBand(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, inBGR, row_start, row_end);
+    }
+
+    @Override
+    protected void rows(int row_start, int row_end) {
+      KERNEL.rgbRows(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, inBGR, row_start, row_end);
+    }
+  }
+  
+  
+  static private class ArgbBand extends Band {
+    private static final long serialVersionUID = 1L;
+    
+    final byte[] buffer; final int inBayer_ptr; final int frame_width, frame_height;
+    final boolean flip_vert;
+    final int[] outPixels; final boolean inBGR;
+    
+    ArgbBand(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels, boolean inBGR, int row_start, int row_end){
+      super(row_start, row_end);
+      this.buffer       = buffer;
+      this.inBayer_ptr  = inBayer_ptr;
+      this.frame_width  = frame_width;
+      this.frame_height = frame_height;
+      this.flip_vert    = flip_vert;
+      this.outPixels    = outPixels;
+      this.inBGR        = inBGR;
+    }
+    
+    @Override
+    protected Band band(int row_start, int row_end) {
+      return new ArgbBand(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outPixels, inBGR, row_start, row_end);
+    }
+
+    @Override
+    protected void rows(int row_start, int row_end) {
+      KERNEL.argbRows(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outPixels, inBGR, row_start, row_end);
+    }
+  }
+  
+
+  /**
+   * Converts the source rows [row_start, row_end), each together with the 
+   * row below and above, into the output rows [row_start+1, row_end+1).
+   */
+  static protected void rgbRows(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer, boolean inBGR, int row_start, int row_end){
+    // PSMove output is in the following Bayer format (GRBG):
+    //
+    // G R G R G R
+    // B G B G B G
+    // G R G R G R
+    // B G B G B G
+    //
+    // This is the normal Bayer pattern shifted left one place.
+    
+    int num_output_channels = 3;
+    int source_stride       = frame_width;
+    int source_row          = inBayer_ptr + row_start * source_stride;                    // Start at first bayer pixel
+    int dest_stride         = frame_width * num_output_channels;
+    int dest_row            = (row_start + 1) * dest_stride + num_output_channels + 1;    // We start outputting at the second pixel of the second row's G component
+    int swap_br             = inBGR ? 1 : -1;
+    
+    int off = flip_vert ? 1 : 0;
+    
+    // Fill rows 1 to height-1 of the destination buffer. First and last row are filled separately (they are copied from the second row and second-to-last rows respectively)
+    for (int y = row_start + off; y < row_end + off; source_row += source_stride, dest_row += dest_stride, ++y){
+//      try {
+//        if(y%5 == 0){
+//          wait(2);
+////          Thread.sleep(2);
+//        }
+//      } catch (InterruptedException e) {
+//        e.printStackTrace();
+//      }
+      int source     = source_row;
+      int source_end = source + (source_stride-2); // -2 to deal with the fact that we're starting at the second pixel of the row and should end at the second-to-last pixel of the row (first and last are filled separately)
+      int dest       = dest_row;
+      
+ 
+      // Row starting with Green
+      if (y % 2 == 0){
+        // Fill first pixel (green)
+        outBuffer[dest - swap_br] = (byte) ((((buffer[source + source_stride    ]&UB) + (buffer[source + source_stride * 1 + 2]&UB) + 1) >> 1)&UB);
+        outBuffer[dest]           =            buffer[source + source_stride + 1];
+        outBuffer[dest + swap_br] = (byte) ((((buffer[source + 1                ]&UB) + (buffer[source + source_stride * 2 + 1]&UB) + 1) >> 1)&UB);
+
+        source++;
+        dest += num_output_channels;
+
+        // Fill remaining pixel
+        for (; source <= source_end - 2; source += 2, dest += num_output_channels * 2){
+          // Blue pixel
+          int cur_pixel  = dest;
+          outBuffer[cur_pixel - swap_br] =          buffer[source + source_stride + 1];
+          outBuffer[cur_pixel]           = (byte) ( (((buffer[source + 1]&UB) + (buffer[source + source_stride]&UB) + (buffer[source+source_stride + 2]&UB) + (buffer[source+source_stride * 2 + 1]&UB) + 2) >> 2)&UB);
+          outBuffer[cur_pixel + swap_br] = (byte) ( (((buffer[source    ]&UB) + (buffer[source + 2            ]&UB) + (buffer[source+source_stride * 2]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 2) >> 2)&UB);       
+
+          // Green pixel
+          int next_pixel = cur_pixel + num_output_channels;
+          outBuffer[next_pixel - swap_br] = (byte) ( (((buffer[source + source_stride + 1]&UB) + (buffer[source+source_stride + 3    ]&UB) + 1) >> 1)&UB);         
+          outBuffer[next_pixel]           =          buffer[source + source_stride + 2];
+          outBuffer[next_pixel + swap_br] = (byte) ( (((buffer[source + 2                ]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 1) >> 1)&UB);
+        }
+      } else {
+        for (; source <= source_end - 2; source += 2, dest += num_output_channels * 2) {
+          // Red pixel
+          int cur_pixel = dest;
+          outBuffer[cur_pixel - swap_br] = (byte) ( (((buffer[source + 0]&UB) + (buffer[source + 2            ]&UB) + (buffer[source+source_stride * 2]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 2) >> 2)&UB);
+          outBuffer[cur_pixel]           = (byte) ( (((buffer[source + 1]&UB) + (buffer[source + source_stride]&UB) + (buffer[source+source_stride + 2]&UB) + (buffer[source+source_stride * 2 + 1]&UB) + 2) >> 2)&UB);
+          outBuffer[cur_pixel + swap_br] =          buffer[source+source_stride + 1];
+
+          // Green pixel
+          int next_pixel = cur_pixel+num_output_channels;
+          outBuffer[next_pixel - swap_br] = (byte) ( (((buffer[source + 2                ]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 1) >> 1)&UB);
+          outBuffer[next_pixel]           =          buffer[source + source_stride + 2];
+          outBuffer[next_pixel + swap_br] = (byte) ( (((buffer[source + source_stride + 1]&UB) + (buffer[source+source_stride + 3    ]&UB) + 1) >> 1)&UB);
+        }
+      }
+
+      if (source < source_end){
+        outBuffer[dest - swap_br] =          buffer[source + source_stride + 1];
+        outBuffer[dest]           = (byte) ( (((buffer[source + 1                ]&UB) + (buffer[source + source_stride]&UB) + (buffer[source + source_stride + 2]&UB) + (buffer[source + source_stride * 2 + 1]&UB) + 2) >> 2)&UB);     
+        outBuffer[dest + swap_br] = (byte) ( (((buffer[source + 0                ]&UB) + (buffer[source + 2            ]&UB) + (buffer[source + source_stride * 2]&UB) + (buffer[source + source_stride * 2 + 2]&UB) + 2) >> 2)&UB);    
+
+        source++;
+        dest += num_output_channels;
+      }
+
+      // Fill first pixel of row (copy second pixel)
+      int first_pixel = dest_row - num_output_channels;
+      outBuffer[first_pixel - swap_br] = outBuffer[dest_row - swap_br];
+      outBuffer[first_pixel]           = outBuffer[dest_row];
+      outBuffer[first_pixel + swap_br] = outBuffer[dest_row + swap_br];
+    
+      // Fill last pixel of row (copy second-to-last pixel). Note: dest row starts at the *second* pixel of the row, so dest_row + (width-2) * num_output_channels puts us at the last pixel of the row
+      int last_pixel           = dest_row + (frame_width - 2) * num_output_channels;
+      int second_to_last_pixel = last_pixel - num_output_channels;
+      
+      outBuffer[last_pixel-swap_br] = outBuffer[second_to_last_pixel - swap_br];
+      outBuffer[last_pixel]         = outBuffer[second_to_last_pixel];
+      outBuffer[last_pixel+swap_br] = outBuffer[second_to_last_pixel + swap_br];
+    }
+
+  }
+  
+  
+  static protected void rgbFirstLastRow(int frame_width, int frame_height, byte[] outBuffer){
+    int dest_stride = frame_width * 3;
+    
+    // Fill first & last row
+    for (int i = 0; i < dest_stride; i++){
+      outBuffer[i]                                  = outBuffer[i + dest_stride];
+      outBuffer[i + (frame_height - 1)*dest_stride] = outBuffer[i + (frame_height - 2)*dest_stride];
+    }
+  }
+  
+  
+  /**
+   * Same as rgbRows(), but every output pixel is written as one packed int.
+   */
+  static protected void argbRows(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels, boolean inBGR, int row_start, int row_end){
+    int source_stride = frame_width;
+    int source_row    = inBayer_ptr + row_start * source_stride;  // Start at first bayer pixel
+    int dest_stride   = frame_width;
+    int dest_row      = (row_start + 1) * dest_stride + 1;        // We start outputting at the second pixel of the second row
+    int shift_r       = inBGR ?  0 : 16;
+    int shift_b       = inBGR ? 16 :  0;
+    
+    int off = flip_vert ? 1 : 0;
+    
+    int r, g, b;
+    
+    for (int y = row_start + off; y < row_end + off; source_row += source_stride, dest_row += dest_stride, ++y){
+      int source     = source_row;
+      int source_end = source + (source_stride-2);
+      int dest       = dest_row;
+      
+      // Row starting with Green
+      if (y % 2 == 0){
+        // Fill first pixel (green)
+        b = ((buffer[source + source_stride    ]&UB) + (buffer[source + source_stride * 1 + 2]&UB) + 1) >> 1;
+        g =   buffer[source + source_stride + 1]&UB;
+        r = ((buffer[source + 1                ]&UB) + (buffer[source + source_stride * 2 + 1]&UB) + 1) >> 1;
+        outPixels[dest++] = 0xFF000000 | (r << shift_r) | (g << 8) | (b << shift_b);
+
+        source++;
+
+        // Fill remaining pixel
+        for (; source <= source_end - 2; source += 2){
+          // Blue pixel
+          b =    buffer[source + source_stride + 1]&UB;
+          g = ((buffer[source + 1]&UB) + (buffer[source + source_stride]&UB) + (buffer[source+source_stride + 2]&UB) + (buffer[source+source_stride * 2 + 1]&UB) + 2) >> 2;
+          r = ((buffer[source    ]&UB) + (buffer[source + 2            ]&UB) + (buffer[source+source_stride * 2]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 2) >> 2;
+          outPixels[dest++] = 0xFF000000 | (r << shift_r) | (g << 8) | (b << shift_b);
+
+          // Green pixel
+          b = ((buffer[source + source_stride + 1]&UB) + (buffer[source+source_stride + 3    ]&UB) + 1) >> 1;
+          g =    buffer[source + source_stride + 2]&UB;
+          r = ((buffer[source + 2                ]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 1) >> 1;
+          outPixels[dest++] = 0xFF000000 | (r << shift_r) | (g << 8) | (b << shift_b);
+        }
+      } else {
+        for (; source <= source_end - 2; source += 2) {
+          // Red pixel
+          b = ((buffer[source + 0]&UB) + (buffer[source + 2            ]&UB) + (buffer[source+source_stride * 2]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 2) >> 2;
+          g = ((buffer[source + 1]&UB) + (buffer[source + source_stride]&UB) + (buffer[source+source_stride + 2]&UB) + (buffer[source+source_stride * 2 + 1]&UB) + 2) >> 2;
+          r =    buffer[source+source_stride + 1]&UB;
+          outPixels[dest++] = 0xFF000000 | (r << shift_r) | (g << 8) | (b << shift_b);
+
+          // Green pixel
+          b = ((buffer[source + 2                ]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 1) >> 1;
+          g =    buffer[source + source_stride + 2]&UB;
+          r = ((buffer[source + source_stride + 1]&UB) + (buffer[source+source_stride + 3    ]&UB) + 1) >> 1;
+          outPixels[dest++] = 0xFF000000 | (r << shift_r) | (g << 8) | (b << shift_b);
+        }
+      }
+
+      if (source < source_end){
+        b =    buffer[source + source_stride + 1]&UB;
+        g = ((buffer[source + 1                ]&UB) + (buffer[source + source_stride]&UB) + (buffer[source + source_stride + 2]&UB) + (buffer[source + source_stride * 2 + 1]&UB) + 2) >> 2;
+        r = ((buffer[source + 0                ]&UB) + (buffer[source + 2            ]&UB) + (buffer[source + source_stride * 2]&UB) + (buffer[source + source_stride * 2 + 2]&UB) + 2) >> 2;
+        outPixels[dest++] = 0xFF000000 | (r << shift_r) | (g << 8) | (b << shift_b);
+      }
+
+      // Fill first pixel of row (copy second pixel)
+      outPixels[dest_row - 1] = outPixels[dest_row];
+    
+      // Fill last pixel of row (copy second-to-last pixel)
+      int last_pixel = dest_row + (frame_width - 2);
+      outPixels[last_pixel] = outPixels[last_pixel - 1];
+    }
+  }
+  
+  
+  static protected void argbFirstLastRow(int frame_width, int frame_height, int[] outPixels){
+    // Fill first & last row
+    System.arraycopy(outPixels, frame_width                     , outPixels, 0                              , frame_width);
+    System.arraycopy(outPixels, frame_width * (frame_height - 2), outPixels, frame_width * (frame_height - 1), frame_width);
+  }
+  
+  
+  
+  
+  
+  /**
+   * Converts the rectangle [roi_x, roi_x + roi_w) x [roi_y, roi_y + roi_h) of
+   * a Bayer frame into roi_w * roi_h RGB (or BGR) pixels. The result is 
+   * identical to the same rectangle of rgb(), the cost only depends on the 
+   * size of the rectangle.
+   */
+  static public void rgb(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, 
+                         int roi_x, int roi_y, int roi_w, int roi_h, byte[] outBuffer, boolean inBGR){
+    checkROI(frame_width, frame_height, roi_x, roi_y, roi_w, roi_h);
+    int shift_r = inBGR ?  0 : 16;
+    int shift_b = inBGR ? 16 :  0;
+    int off = flip_vert ? 1 : 0;
+    
+    int dest = 0;
+    for(int y = roi_y; y < roi_y + roi_h; y++){
+      // first and last row are copies of their neighbours
+      int row = Math.max(1, Math.min(frame_height - 2, y));
+      for(int x = roi_x; x < roi_x + roi_w; x++){
+        // first and last column are copies of their neighbours
+        int col = Math.max(1, Math.min(frame_width - 2, x));
+        int rgb = pixel(buffer, inBayer_ptr, frame_width, off, col, row);
+        outBuffer[dest++] = (byte) (rgb >> shift_r);
+        outBuffer[dest++] = (byte) (rgb >>       8);
+        outBuffer[dest++] = (byte) (rgb >> shift_b);
+      }
+    }
+  }
+  
+  
+  /**
+   * Converts the rectangle [roi_x, roi_x + roi_w) x [roi_y, roi_y + roi_h) of
+   * a Bayer frame into roi_w * roi_h packed 0xAARRGGBB (or 0xAABBGGRR for 
+   * inBGR) pixels. The result is identical to the same rectangle of argb().
+   */
+  static public void argb(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, 
+                          int roi_x, int roi_y, int roi_w, int roi_h, int[] outPixels, boolean inBGR){
+    checkROI(frame_width, frame_height, roi_x, roi_y, roi_w, roi_h);
+    int off = flip_vert ? 1 : 0;
+    
+    int dest = 0;
+    for(int y = roi_y; y < roi_y + roi_h; y++){
+      int row = Math.max(1, Math.min(frame_height - 2, y));
+      for(int x = roi_x; x < roi_x + roi_w; x++){
+        int col = Math.max(1, Math.min(frame_width - 2, x));
+        int rgb = pixel(buffer, inBayer_ptr, frame_width, off, col, row);
+        if(inBGR){
+          rgb = (rgb & 0xFF00FF00) | ((rgb >> 16) & UB) | ((rgb & UB) << 16);
+        }
+        outPixels[dest++] = rgb;
+      }
+    }
+  }
+  
+  
+  /**
+   * Copies the rectangle [roi_x, roi_x + roi_w) x [roi_y, roi_y + roi_h) of
+   * a Bayer frame.
+   */
+  static public void bayer(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, 
+                           int roi_x, int roi_y, int roi_w, int roi_h, byte[] outBuffer){
+    checkROI(frame_width, frame_height, roi_x, roi_y, roi_w, roi_h);
+    for(int y = 0; y < roi_h; y++){
+      System.arraycopy(buffer, inBayer_ptr + (roi_y + y) * frame_width + roi_x, outBuffer, y * roi_w, roi_w);
+    }
+  }
+  
+  
+  /**
+   * Expands the rectangle [roi_x, roi_x + roi_w) x [roi_y, roi_y + roi_h) of
+   * a Bayer frame to gray 0xAAVVVVVV pixels.
+   */
+  static public void bayerARGB(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, 
+                               int roi_x, int roi_y, int roi_w, int roi_h, int[] outPixels){
+    checkROI(frame_width, frame_height, roi_x, roi_y, roi_w, roi_h);
+    for(int y = 0; y < roi_h; y++){
+      int src  = inBayer_ptr + (roi_y + y) * frame_width + roi_x;
+      int dest = y * roi_w;
+      for(int x = 0; x < roi_w; x++){
+        int bayer = buffer[src + x] & UB;
+        outPixels[dest + x] = 0xFF000000 | (bayer<<16) | (bayer<<8) | bayer;
+      }
+    }
+  }
+  
+  
+  /**
+   * Converts each 2x2 Bayer quad into one RGB (or BGR) pixel: R, the average
+   * of both G, and B. The output has (frame_width/2) * (frame_height/2) 
+   * pixels, no interpolation is done.
+   */
+  static public void rgbHalf(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer, boolean inBGR){
+    int half_w = frame_width  >> 1;
+    int half_h = frame_height >> 1;
+    // GRBG, or BGGR for flipped frames
+    int ir = flip_vert ? frame_width + 1 : 1;
+    int ib = flip_vert ? 0 : frame_width;
+    int ig = flip_vert ? 1 : 0;
+    int ih = flip_vert ? frame_width : frame_width + 1;
+    if(inBGR){
+      int tmp = ir; ir = ib; ib = tmp;
+    }
+    
+    int dest = 0;
+    for(int y = 0; y < half_h; y++){
+      int src = inBayer_ptr + 2 * y * frame_width;
+      for(int x = 0; x < half_w; x++, src += 2){
+        outBuffer[dest++] = buffer[src + ir];
+        outBuffer[dest++] = (byte) (((buffer[src + ig]&UB) + (buffer[src + ih]&UB) + 1) >> 1);
+        outBuffer[dest++] = buffer[src + ib];
+      }
+    }
+  }
+  
+  
+  /**
+   * Same as rgbHalf(), into packed 0xAARRGGBB (or 0xAABBGGRR for inBGR) 
+   * pixels.
+   */
+  static public void argbHalf(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels, boolean inBGR){
+    int half_w = frame_width  >> 1;
+    int half_h = frame_height >> 1;
+    int ir = flip_vert ? frame_width + 1 : 1;
+    int ib = flip_vert ? 0 : frame_width;
+    int ig = flip_vert ? 1 : 0;
+    int ih = flip_vert ? frame_width : frame_width + 1;
+    if(inBGR){
+      int tmp = ir; ir = ib; ib = tmp;
+    }
+    
+    int dest = 0;
+    for(int y = 0; y < half_h; y++){
+      int src = inBayer_ptr + 2 * y * frame_width;
+      for(int x = 0; x < half_w; x++, src += 2){
+        int r = buffer[src + ir]&UB;
+        int g = ((buffer[src + ig]&UB) + (buffer[src + ih]&UB) + 1) >> 1;
+        int b = buffer[src + ib]&UB;
+        outPixels[dest++] = 0xFF000000 | (r << 16) | (g << 8) | b;
+      }
+    }
+  }
+  
+  
+  /**
+   * Averages each 2x2 Bayer quad into one gray byte.
+   */
+  static public void bayerHalf(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, byte[] outBuffer){
+    int half_w = frame_width  >> 1;
+    int half_h = frame_height >> 1;
+    
+    int dest = 0;
+    for(int y = 0; y < half_h; y++){
+      int src = inBayer_ptr + 2 * y * frame_width;
+      for(int x = 0; x < half_w; x++, src += 2){
+        int sum = (buffer[src              ]&UB) + (buffer[src               + 1]&UB) 
+                + (buffer[src + frame_width]&UB) + (buffer[src + frame_width + 1]&UB);
+        outBuffer[dest++] = (byte) ((sum + 2) >> 2);
+      }
+    }
+  }
+  
+  
+  /**
+   * Averages each 2x2 Bayer quad into one gray 0xAAVVVVVV pixel.
+   */
+  static public void bayerHalfARGB(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, int[] outPixels){
+    int half_w = frame_width  >> 1;
+    int half_h = frame_height >> 1;
+    
+    int dest = 0;
+    for(int y = 0; y < half_h; y++){
+      int src = inBayer_ptr + 2 * y * frame_width;
+      for(int x = 0; x < half_w; x++, src += 2){
+        int sum = (buffer[src              ]&UB) + (buffer[src               + 1]&UB) 
+                + (buffer[src + frame_width]&UB) + (buffer[src + frame_width + 1]&UB);
+        int v = (sum + 2) >> 2;
+        outPixels[dest++] = 0xFF000000 | (v << 16) | (v << 8) | v;
+      }
+    }
+  }
+  
+  
+  /**
+   * Converts a whole Bayer frame into 8 bit luma, one byte per pixel, on the
+   * calling thread. The luma is computed from the bilinear colors of rgb(),
+   * without an intermediate RGB buffer.
+   */
+  static public void gray(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer){
+    int off = flip_vert ? 1 : 0;
+    for(int y = 1; y < frame_height - 1; y++){
+      int dest = y * frame_width;
+      lumaRow(buffer, inBayer_ptr + dest, frame_width, ((y - 1 + off) & 1) == 0, outBuffer, dest, 77, 150, 29, 128);
+    }
+    // first and last row are copies of their neighbours
+    System.arraycopy(outBuffer, frame_width                     , outBuffer, 0                              , frame_width);
+    System.arraycopy(outBuffer, frame_width * (frame_height - 2), outBuffer, frame_width * (frame_height - 1), frame_width);
+  }
+  
+  
+  /**
+   * Same as gray(), into gray 0xAAYYYYYY pixels.
+   */
+  static public void grayARGB(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels){
+    int off = flip_vert ? 1 : 0;
+    byte[] row = scratch(SCRATCH_LUMA, frame_width);
+    for(int y = 1; y < frame_height - 1; y++){
+      lumaRow(buffer, inBayer_ptr + y * frame_width, frame_width, ((y - 1 + off) & 1) == 0, row, 0, 77, 150, 29, 128);
+      int dest = y * frame_width;
+      for(int x = 0; x < frame_width; x++){
+        outPixels[dest + x] = 0xFF000000 | (row[x]&UB) * 0x010101;
+      }
+    }
+    argbFirstLastRow(frame_width, frame_height, outPixels);
+  }
+  
+  
+  // Luma (kr * R + kg * G + kb * B + bias) >> 8 of one inner row (source at 
+  // its first pixel), first and last pixel are copies of their neighbours. 
+  // The inner pixels [1, w-2] are processed as (odd, even) pairs, for an odd
+  // frame_width the last one is left over.
+  static private void lumaRow(byte[] buffer, int source, int frame_width, boolean green_row, byte[] out, int dest, int kr, int kg, int kb, int bias){
+    int w = frame_width;
+    if(green_row){
+      // G B G B ..., red above and below the green pixels
+      for(int x = 1; x < w - 2; x += 2){
+        int s = source + x;
+        // Green pixel
+        int r = ((buffer[s - w]&UB) + (buffer[s + w]&UB) + 1) >> 1;
+        int g =   buffer[s    ]&UB;
+        int b = ((buffer[s - 1]&UB) + (buffer[s + 1]&UB) + 1) >> 1;
+        out[dest + x] = (byte) ((kr * r + kg * g + kb * b + bias) >> 8);
+        
+        // Blue pixel
+        s++;
+        r = ((buffer[s - w - 1]&UB) + (buffer[s - w + 1]&UB) + (buffer[s + w - 1]&UB) + (buffer[s + w + 1]&UB) + 2) >> 2;
+        g = ((buffer[s - w    ]&UB) + (buffer[s + w    ]&UB) + (buffer[s     - 1]&UB) + (buffer[s     + 1]&UB) + 2) >> 2;
+        b =   buffer[s        ]&UB;
+        out[dest + x + 1] = (byte) ((kr * r + kg * g + kb * b + bias) >> 8);
+      }
+    } else {
+      // R G R G ..., blue above and below the green pixels
+      for(int x = 1; x < w - 2; x += 2){
+        int s = source + x;
+        // Red pixel
+        int r =   buffer[s        ]&UB;
+        int g = ((buffer[s - w    ]&UB) + (buffer[s + w    ]&UB) + (buffer[s     - 1]&UB) + (buffer[s     + 1]&UB) + 2) >> 2;
+        int b = ((buffer[s - w - 1]&UB) + (buffer[s - w + 1]&UB) + (buffer[s + w - 1]&UB) + (buffer[s + w + 1]&UB) + 2) >> 2;
+        out[dest + x] = (byte) ((kr * r + kg * g + kb * b + bias) >> 8);
+        
+        // Green pixel
+        s++;
+        r = ((buffer[s - 1]&UB) + (buffer[s + 1]&UB) + 1) >> 1;
+        g =   buffer[s    ]&UB;
+        b = ((buffer[s - w]&UB) + (buffer[s + w]&UB) + 1) >> 1;
+        out[dest + x + 1] = (byte) ((kr * r + kg * g + kb * b + bias) >> 8);
+      }
+    }
+    if((w & 1) == 1 && w > 2){
+      out[dest + w - 2] = (byte) luma(buffer, source + w - 2, w, green_row, true, kr, kg, kb, bias);
+    }
+    out[dest        ] = out[dest + 1];
+    out[dest + w - 1] = out[dest + w - 2];
+  }
+  
+  
+  /**
+   * Converts the rectangle [roi_x, roi_x + roi_w) x [roi_y, roi_y + roi_h) of
+   * a Bayer frame into 8 bit luma. The result is identical to the same 
+   * rectangle of gray().
+   */
+  static public void gray(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, 
+                          int roi_x, int roi_y, int roi_w, int roi_h, byte[] outBuffer){
+    checkROI(frame_width, frame_height, roi_x, roi_y, roi_w, roi_h);
+    int off = flip_vert ? 1 : 0;
+    
+    int dest = 0;
+    for(int y = roi_y; y < roi_y + roi_h; y++){
+      int row = Math.max(1, Math.min(frame_height - 2, y));
+      boolean green_row = ((row - 1 + off) & 1) == 0;
+      for(int x = roi_x; x < roi_x + roi_w; x++){
+        int col = Math.max(1, Math.min(frame_width - 2, x));
+        outBuffer[dest++] = (byte) luma(buffer, inBayer_ptr + row * frame_width + col, frame_width, green_row, (col & 1) == 1);
+      }
+    }
+  }
+  
+  
+  /**
+   * Same as gray() for a rectangle, into gray 0xAAYYYYYY pixels.
+   */
+  static public void grayARGB(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, 
+                              int roi_x, int roi_y, int roi_w, int roi_h, int[] outPixels){
+    checkROI(frame_width, frame_height, roi_x, roi_y, roi_w, roi_h);
+    int off = flip_vert ? 1 : 0;
+    
+    int dest = 0;
+    for(int y = roi_y; y < roi_y + roi_h; y++){
+      int row = Math.max(1, Math.min(frame_height - 2, y));
+      boolean green_row = ((row - 1 + off) & 1) == 0;
+      for(int x = roi_x; x < roi_x + roi_w; x++){
+        int col = Math.max(1, Math.min(frame_width - 2, x));
+        outPixels[dest++] = 0x010101 * luma(buffer, inBayer_ptr + row * frame_width + col, frame_width, green_row, (col & 1) == 1) | 0xFF000000;
+      }
+    }
+  }
+  
+  
+  /**
+   * Converts a whole Bayer frame from a ByteBuffer (heap or direct) into RGB 
+   * (or BGR) pixels, written to out starting at out_ptr. The result is 
+   * identical to rgb(byte[], ..).<br>
+   * Each output row is converted by the RowKernel from a copy of its three 
+   * source rows, so only a few rows ever pass the heap.
+   */
+  static public void rgb(ByteBuffer in, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, ByteBuffer out, int out_ptr, boolean inBGR){
+    int stride = frame_width * 3;
+    int off    = flip_vert ? 1 : 0;
+    
+    byte[] rows_in  = scratch(SCRATCH_ROWS_IN , frame_width * 3);
+    byte[] rows_out = scratch(SCRATCH_ROWS_OUT, stride * 3);
+    
+    ByteBuffer src = in .duplicate();
+    ByteBuffer dst = out.duplicate();
+    
+    for(int row = 0; row < frame_height - 2; row++){
+      src.limit(inBayer_ptr + (row + 3) * frame_width).position(inBayer_ptr + row * frame_width);
+      src.get(rows_in, 0, frame_width * 3);
+      // the kernel derives the Bayer row parity from the row index, which is 0 here
+      KERNEL.rgbRows(rows_in, 0, frame_width, 3, ((row + off) & 1) == 1, rows_out, inBGR, 0, 1);
+      dst.limit(out_ptr + (row + 2) * stride).position(out_ptr + (row + 1) * stride);
+      dst.put(rows_out, stride, stride);
+    }
+    
+    // first and last row are copies of their neighbours
+    dst.limit(out_ptr + stride * frame_height).position(out_ptr);
+    src = dst.duplicate();
+    src.limit(out_ptr + stride * 2).position(out_ptr + stride);
+    dst.position(out_ptr);
+    dst.put(src);
+    src.limit(out_ptr + stride * (frame_height - 1)).position(out_ptr + stride * (frame_height - 2));
+    dst.position(out_ptr + stride * (frame_height - 1));
+    dst.put(src);
+  }
+  
+  
+  /**
+   * Converts a whole Bayer frame into planar YUV 4:2:0, BT.601 video range.
+   * The Y plane (w * h) is followed by the U and the V plane (w/2 * h/2 each).
+   */
+  static public void i420(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer){
+    int num_pixels = frame_width * frame_height;
+    yuv(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, num_pixels, num_pixels + num_pixels / 4, 1);
+  }
+  
+  
+  /**
+   * Converts a whole Bayer frame into semi-planar YUV 4:2:0, BT.601 video 
+   * range. The Y plane (w * h) is followed by one plane of interleaved U, V 
+   * samples (w/2 * h/2 pairs).
+   */
+  static public void nv12(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer){
+    int num_pixels = frame_width * frame_height;
+    yuv(buffer, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, num_pixels, num_pixels + 1, 2);
+  }
+  
+  
+  // Y plane from the bilinear colors, U, V from the 2x2 quads. 
+  // u_ptr/v_ptr: start of the chroma samples, uv_step: distance of two samples
+  static private void yuv(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, 
+                          byte[] outBuffer, int u_ptr, int v_ptr, int uv_step){
+    int off = flip_vert ? 1 : 0;
+    
+    // Y, video range: 16 + (66 * R + 129 * G + 25 * B) / 256
+    for(int y = 1; y < frame_height - 1; y++){
+      int dest = y * frame_width;
+      lumaRow(buffer, inBayer_ptr + dest, frame_width, ((y - 1 + off) & 1) == 0, outBuffer, dest, 66, 129, 25, 128 + (16 << 8));
+    }
+    System.arraycopy(outBuffer, frame_width                     , outBuffer, 0                              , frame_width);
+    System.arraycopy(outBuffer, frame_width * (frame_height - 2), outBuffer, frame_width * (frame_height - 1), frame_width);
+    
+    // U, V, one sample per quad: GRBG, or BGGR for flipped frames
+    int half_w = frame_width  >> 1;
+    int half_h = frame_height >> 1;
+    int ir = flip_vert ? frame_width + 1 : 1;
+    int ib = flip_vert ? 0 : frame_width;
+    int ig = flip_vert ? 1 : 0;
+    int ih = flip_vert ? frame_width : frame_width + 1;
+    
+    int dest = 0;
+    for(int y = 0; y < half_h; y++){
+      int src = inBayer_ptr + 2 * y * frame_width;
+      for(int x = 0; x < half_w; x++, src += 2, dest += uv_step){
+        int r = buffer[src + ir]&UB;
+        int g = ((buffer[src + ig]&UB) + (buffer[src + ih]&UB) + 1) >> 1;
+        int b = buffer[src + ib]&UB;
+        outBuffer[u_ptr + dest] = (byte) (((-38 * r -  74 * g + 112 * b + 128) >> 8) + 128);
+        outBuffer[v_ptr + dest] = (byte) ((( 112 * r -  94 * g -  18 * b + 128) >> 8) + 128);
+      }
+    }
+  }
+  
+  
+  /**
+   * Luma of the colors of rgbHalf(), one byte per 2x2 quad.
+   */
+  static public void grayHalf(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, byte[] outBuffer){
+    int half_w = frame_width  >> 1;
+    int half_h = frame_height >> 1;
+    int ir = flip_vert ? frame_width + 1 : 1;
+    int ib = flip_vert ? 0 : frame_width;
+    int ig = flip_vert ? 1 : 0;
+    int ih = flip_vert ? frame_width : frame_width + 1;
+    
+    int dest = 0;
+    for(int y = 0; y < half_h; y++){
+      int src = inBayer_ptr + 2 * y * frame_width;
+      for(int x = 0; x < half_w; x++, src += 2){
+        int r = buffer[src + ir]&UB;
+        int g = ((buffer[src + ig]&UB) + (buffer[src + ih]&UB) + 1) >> 1;
+        int b = buffer[src + ib]&UB;
+        outBuffer[dest++] = (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+      }
+    }
+  }
+  
+  
+  /**
+   * Same as grayHalf(), into gray 0xAAYYYYYY pixels.
+   */
+  static public void grayHalfARGB(byte[] buffer, int inBayer_ptr, int frame_width, int frame_height, boolean flip_vert, int[] outPixels){
+    int half_w = frame_width  >> 1;
+    int half_h = frame_height >> 1;
+    int ir = flip_vert ? frame_width + 1 : 1;
+    int ib = flip_vert ? 0 : frame_width;
+    int ig = flip_vert ? 1 : 0;
+    int ih = flip_vert ? frame_width : frame_width + 1;
+    
+    int dest = 0;
+    for(int y = 0; y < half_h; y++){
+      int src = inBayer_ptr + 2 * y * frame_width;
+      for(int x = 0; x < half_w; x++, src += 2){
+        int r = buffer[src + ir]&UB;
+        int g = ((buffer[src + ig]&UB) + (buffer[src + ih]&UB) + 1) >> 1;
+        int b = buffer[src + ib]&UB;
+        outPixels[dest++] = 0x010101 * ((77 * r + 150 * g + 29 * b + 128) >> 8) | 0xFF000000;
+      }
+    }
+  }
+  
+  
+  /**
+   * Luma of the bilinear colors of the inner pixel at s, same colors as 
+   * pixel(). green_row and odd_x give the Bayer site of s.
+   */
+  static private int luma(byte[] buffer, int s, int frame_width, boolean green_row, boolean odd_x){
+    return luma(buffer, s, frame_width, green_row, odd_x, 77, 150, 29, 128);
+  }
+  
+  static private int luma(byte[] buffer, int s, int frame_width, boolean green_row, boolean odd_x, int kr, int kg, int kb, int bias){
+    int a = s - frame_width; // row above
+    int b = s + frame_width; // row below
+    int c = buffer[s]&UB;
+    int h2 = ((buffer[s - 1]&UB) + (buffer[s + 1]&UB) + 1) >> 1;
+    int v2 = ((buffer[a    ]&UB) + (buffer[b    ]&UB) + 1) >> 1;
+    int r, g, bl;
+    if(green_row == odd_x){
+      // Green pixel
+      g  = c;
+      r  = green_row ? v2 : h2;
+      bl = green_row ? h2 : v2;
+    } else {
+      int x4 = ((buffer[a    ]&UB) + (buffer[b    ]&UB) + (buffer[s - 1]&UB) + (buffer[s + 1]&UB) + 2) >> 2;
+      int d4 = ((buffer[a - 1]&UB) + (buffer[a + 1]&UB) + (buffer[b - 1]&UB) + (buffer[b + 1]&UB) + 2) >> 2;
+      g  = x4;
+      r  = green_row ? d4 : c;  // Blue pixel : Red pixel
+      bl = green_row ? c : d4;
+    }
+    return (kr * r + kg * g + kb * bl + bias) >> 8;
+  }
+  
+  
+  // scratch array of the calling thread, at least num_bytes long
+  static private byte[] scratch(int idx, int num_bytes){
+    byte[][] arrays = scratch.get();
+    if(arrays[idx].length < num_bytes){
+      arrays[idx] = new byte[num_bytes];
+    }
+    return arrays[idx];
+  }
+  
+  
+  static protected void checkROI(int frame_width, int frame_height, int roi_x, int roi_y, int roi_w, int roi_h){
+    if(roi_x < 0 || roi_y < 0 || roi_w <= 0 || roi_h <= 0 || roi_x + roi_w > frame_width || roi_y + roi_h > frame_height){
+      throw new IllegalArgumentException("ROI ["+roi_x+", "+roi_y+", "+roi_w+", "+roi_h+"] is not inside the frame ["+frame_width+", "+frame_height+"]");
+    }
+  }
+  
+  
+  /**
+   * Bilinear interpolation of an inner pixel (1 <= x <= w-2, 1 <= y <= h-2),
+   * same as rgbRows()/argbRows(). Returns 0xFFRRGGBB.
+   */
+  static private int pixel(byte[] buffer, int inBayer_ptr, int frame_width, int off, int x, int y){
+    int s  = inBayer_ptr + y * frame_width + x;
+    int a  = s - frame_width; // row above
+    int b  = s + frame_width; // row below
+    int c  = buffer[s]&UB;
+    int r, g, bl;
+    
+    // same parity as rgbRows(), which processes output row y from source row y-1
+    if (((y - 1 + off) & 1) == 0){
+      // Row starting with Green
+      if ((x & 1) == 1){
+        // Green pixel
+        r  = ((buffer[a]&UB) + (buffer[b]&UB) + 1) >> 1;
+        g  = c;
+        bl = ((buffer[s - 1]&UB) + (buffer[s + 1]&UB) + 1) >> 1;
+      } else {
+        // Blue pixel
+        r  = ((buffer[a - 1]&UB) + (buffer[a + 1]&UB) + (buffer[b - 1]&UB) + (buffer[b + 1]&UB) + 2) >> 2;
+        g  = ((buffer[a    ]&UB) + (buffer[b    ]&UB) + (buffer[s - 1]&UB) + (buffer[s + 1]&UB) + 2) >> 2;
+        bl = c;
+      }
+    } else {
+      if ((x & 1) == 1){
+        // Red pixel
+        r  = c;
+        g  = ((buffer[a    ]&UB) + (buffer[b    ]&UB) + (buffer[s - 1]&UB) + (buffer[s + 1]&UB) + 2) >> 2;
+        bl = ((buffer[a - 1]&UB) + (buffer[a + 1]&UB) + (buffer[b - 1]&UB) + (buffer[b + 1]&UB) + 2) >> 2;
+      } else {
+        // Green pixel
+        r  = ((buffer[s - 1]&UB) + (buffer[s + 1]&UB) + 1) >> 1;
+        g  = c;
+        bl = ((buffer[a]&UB) + (buffer[b]&UB) + 1) >> 1;
+      }
+    }
+    return 0xFF000000 | (r << 16) | (g << 8) | bl;
+  }
+
+}
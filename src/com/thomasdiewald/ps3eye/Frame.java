@@ -0,0 +1,238 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ * 
+ * Read-only view of a frame in the FrameQueue, handed to a FrameListener or
+ * leased by PS3Eye.acquireFrame().<br>
+ * <br>
+ * The frame's slot is owned by its Frame until the last reference is 
+ * released, the producer never writes to it in the meantime. Frame objects 
+ * are reused for later frames of the same slot, so a Frame must not be used
+ * after it was released.<br>
+ * <br>
+ * A Frame holds on to the memory and the slot states of the ring it was 
+ * created for. If the queue is resized (e.g. the camera is restarted) while 
+ * it is leased, it stays valid and is released to its old ring.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class Frame {
+  
+  protected final FrameQueue queue;
+  protected final int        slot;
+  protected final ByteBuffer bayer;
+  
+  // the ring this frame belongs to: slot states, memory of all slots, 
+  // position and size of this frame
+  protected final AtomicIntegerArray slot_state;
+  protected final ByteBuffer store;
+  protected final byte[]     heap;
+  protected final int        ptr;
+  protected final int        size;
+  protected final FrameInfo  info = new FrameInfo();
+  protected final AtomicInteger ref_count = new AtomicInteger(0);
+  
+  protected int width;
+  protected int height;
+  
+  protected Frame(FrameQueue queue, int slot){
+    this.queue = queue;
+    this.slot  = slot;
+    
+    this.slot_state = queue.slot_state;
+    this.store      = queue.frame_store;
+    this.heap       = queue.frame_buffer;
+    this.ptr        = queue.getFramePtr(slot);
+    this.size       = queue.frame_size;
+    
+    ByteBuffer bayer = store.duplicate();
+    bayer.limit(ptr + size).position(ptr);
+    this.bayer = bayer.slice().asReadOnlyBuffer();
+  }
+  
+  // called by the dispatcher, which holds the first reference
+  protected void open(int width, int height, FrameInfo info){
+    this.width  = width;
+    this.height = height;
+    this.info.set(info);
+    this.ref_count.set(1);
+  }
+  
+  
+  /**
+   * Keeps the frame valid after FrameListener.frameReceived() returned.
+   * Each call needs a matching release().
+   */
+  public Frame retain(){
+    for(;;){
+      int count = ref_count.get();
+      if(count <= 0){
+        throw new IllegalStateException("Frame was already released");
+      }
+      if(ref_count.compareAndSet(count, count + 1)){
+        return this;
+      }
+    }
+  }
+  
+  /**
+   * Releases a reference. The last release hands the frame's slot back to 
+   * the frame queue.
+   */
+  public void release(){
+    int count = ref_count.decrementAndGet();
+    if(count == 0){
+      queue.release(this);
+    } else if(count < 0){
+      ref_count.incrementAndGet();
+      throw new IllegalStateException("Frame was already released");
+    }
+  }
+  
+  private void checkValid(){
+    if(ref_count.get() <= 0){
+      throw new IllegalStateException("Frame was already released");
+    }
+  }
+  
+  public int getWidth(){
+    return width;
+  }
+  
+  public int getHeight(){
+    return height;
+  }
+  
+  /**
+   * @return metadata of this frame
+   */
+  public FrameInfo getFrameInfo(){
+    return info;
+  }
+  
+  /**
+   * @return read-only view of the raw Bayer data, width * height bytes. It is
+   * a direct buffer if the frames are kept off-heap, see PS3Eye.setOffHeap().
+   */
+  public ByteBuffer getBayer(){
+    checkValid();
+    return bayer.duplicate();
+  }
+  
+  /**
+   * Converts the frame to the given format, like PS3Eye.getFrame(byte[]).
+   * If buffer is null or of the wrong size, it gets (re)allocated.
+   */
+  public byte[] getFrame(byte[] buffer, PS3Eye.Format format){
+    checkValid();
+    int num_bytes = format.getFrameSize(width, height);
+    if(buffer == null || buffer.length != num_bytes){
+      buffer = new byte[num_bytes];
+    }
+    queue.convert(this, buffer, width, height, format);
+    return buffer;
+  }
+  
+  /**
+   * Converts the frame to packed pixels, like PS3Eye.getFrame(int[]).
+   */
+  public void getFrame(int[] pixels, PS3Eye.Format format){
+    checkValid();
+    if(pixels == null || pixels.length != width * height){
+      throw new IllegalArgumentException("pixels has wrong size");
+    }
+    queue.convert(this, pixels, width, height, format);
+  }
+  
+  /**
+   * Converts the frame to the given format, like PS3Eye.getFrame(ByteBuffer).
+   */
+  public void getFrame(ByteBuffer buffer, PS3Eye.Format format){
+    checkValid();
+    queue.convert(this, buffer, width, height, format);
+  }
+  
+  /**
+   * Converts the frame at half resolution, see PS3Eye.getFrameHalf(byte[]).
+   * If buffer is null or of the wrong size, it gets (re)allocated.
+   */
+  public byte[] getFrameHalf(byte[] buffer, PS3Eye.Format format){
+    checkValid();
+    int num_bytes = format.getFrameSize(width / 2, height / 2);
+    if(buffer == null || buffer.length != num_bytes){
+      buffer = new byte[num_bytes];
+    }
+    queue.convertHalf(this, buffer, width, height, format);
+    return buffer;
+  }
+  
+  /**
+   * Converts the frame at half resolution to packed pixels.
+   */
+  public void getFrameHalf(int[] pixels, PS3Eye.Format format){
+    checkValid();
+    if(pixels == null || pixels.length != (width / 2) * (height / 2)){
+      throw new IllegalArgumentException("pixels has wrong size");
+    }
+    queue.convertHalf(this, pixels, width, height, format);
+  }
+  
+  /**
+   * Converts the rectangle [x, x + w) x [y, y + h) of the frame.
+   * If buffer is null or of the wrong size, it gets (re)allocated.
+   */
+  public byte[] getFrame(byte[] buffer, PS3Eye.Format format, int x, int y, int w, int h){
+    checkValid();
+    Debayer.checkROI(width, height, x, y, w, h);
+    int num_bytes = format.getFrameSize(w, h);
+    if(buffer == null || buffer.length != num_bytes){
+      buffer = new byte[num_bytes];
+    }
+    queue.convert(this, buffer, width, height, format, x, y, w, h);
+    return buffer;
+  }
+  
+  /**
+   * Converts the rectangle [x, x + w) x [y, y + h) of the frame to packed 
+   * pixels.
+   */
+  public void getFrame(int[] pixels, PS3Eye.Format format, int x, int y, int w, int h){
+    checkValid();
+    Debayer.checkROI(width, height, x, y, w, h);
+    if(pixels == null || pixels.length != w * h){
+      throw new IllegalArgumentException("pixels has wrong size");
+    }
+    queue.convert(this, pixels, width, height, format, x, y, w, h);
+  }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+
+/**
+ * 
+ * Metadata of a delivered frame.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class FrameInfo {
+  
+  protected long sequence;
+  protected int  pts;
+  protected long timestamp;
+  protected long dropped;
+  
+  public FrameInfo(){
+  }
+  
+  protected void set(long sequence, int pts, long timestamp, long dropped){
+    this.sequence  = sequence;
+    this.pts       = pts;
+    this.timestamp = timestamp;
+    this.dropped   = dropped;
+  }
+  
+  public void set(FrameInfo other){
+    set(other.sequence, other.pts, other.timestamp, other.dropped);
+  }
+  
+  /**
+   * @return sequence number, counting every frame the camera sent since the
+   *         stream was started, starting at 1.
+   */
+  public long getSequence(){
+    return sequence;
+  }
+  
+  /**
+   * @return the camera's presentation time stamp (UVC PTS, 32 bit, in units 
+   *         of the device clock).
+   */
+  public int getPTS(){
+    return pts;
+  }
+  
+  /**
+   * @return System.nanoTime() at which the USB transfer holding the last 
+   *         packet of the frame completed.
+   */
+  public long getTimestamp(){
+    return timestamp;
+  }
+  
+  /**
+   * @return number of frames that were overwritten, dropped or discarded as 
+   *         incomplete since the previous frame delivered to the same 
+   *         consumer (thread, or FrameListener), i.e. the frames it missed.
+   */
+  public long getDropped(){
+    return dropped;
+  }
+  
+  @Override
+  public String toString(){
+    return "FrameInfo[sequence=" + sequence + ", pts=" + pts + ", timestamp=" + timestamp + ", dropped=" + dropped + "]";
+  }
+
+}
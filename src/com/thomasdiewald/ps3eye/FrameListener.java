@@ -0,0 +1,48 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+
+/**
+ * 
+ * Receives the frames of a PS3Eye as soon as they are complete, see 
+ * PS3Eye.setFrameListener().
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public interface FrameListener {
+  
+  /**
+   * Called on the listener's executor, once per frame, in frame order.<br>
+   * The frame is valid until this method returns. To keep it longer, call 
+   * frame.retain() and frame.release() when done. While a frame is retained, 
+   * its slot in the frame queue can't be written, so retained frames should
+   * be released quickly, and the queue depth (PS3Eye.setQueueDepth()) must 
+   * be at least 2 + the number of frames retained at the same time.
+   */
+  public void frameReceived(Frame frame);
+
+}
@@ -24,229 +24,999 @@
 
 package com.thomasdiewald.ps3eye;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
+ * 
+ * Ring of frame slots, shared by the USB-thread (single producer) and the 
+ * threads calling getFrame() (consumers). Usually there is one consumer, but
+ * any number of threads may claim frames concurrently.<br>
+ * <br>
+ * Each slot carries a state and the sequence number of the frame it holds.
+ * Slots are handed over between producer and consumer by atomic state 
+ * transitions only, so the producer never takes a monitor and never waits.<br>
+ * 
+ * <pre>
+ *   FREE --(producer)--> WRITING --(producer)--> READY --(consumer)--> READING --(consumer)--> FREE
+ * </pre>
+ * 
+ * If a FrameListener is set, the consumer is a dispatch task on the 
+ * listener's executor, see dispatch().
  * 
  * @author Thomas Diewald
  *
  */
 public class FrameQueue {
+  
+  /**
+   * Which frames the consumer gets, and which frame is dropped when all slots
+   * are in use, i.e. the consumer is not reading frames fast enough.<br>
+   * <br>
+   * OVERWRITE_NEWEST, DROP_OLDEST and EVERY_FRAME deliver queued frames 
+   * oldest first. LATEST always delivers the newest frame, for the lowest 
+   * latency. EVERY_FRAME is meant for recording: with its deep queue no frame
+   * is lost to short stalls of the consumer. Dropped frames are counted in 
+   * Statistics and FrameInfo.getDropped().
+   */
+  static public enum Policy{
+    OVERWRITE_NEWEST( 2), // the frame that just completed is discarded, its slot is written again
+    DROP_OLDEST     ( 2), // the oldest queued frame is discarded, its slot is written next
+    LATEST          ( 3), // the newest frame is delivered, older queued frames are skipped. When full, like DROP_OLDEST
+    EVERY_FRAME     (16), // all frames in order, deep queue. When full, like OVERWRITE_NEWEST
+    ;
+    
+    /**
+     * Queue depth used by PS3Eye, unless one is set, see PS3Eye.setQueueDepth().
+     */
+    public final int default_depth;
+    
+    private Policy(int default_depth){
+      this.default_depth = default_depth;
+    }
+  }
+  
+  // slot states
+  static final protected int FREE    = 0;
+  static final protected int WRITING = 1;
+  static final protected int READY   = 2;
+  static final protected int READING = 3;
 
   protected int        frame_size;
   protected int        num_frames = 2;
   protected byte[]     frame_buffer = new byte[0];
   protected int        frame_buffer_ptr = 0;
-  protected int        head = 0;
-  protected int        tail = 0;
-  protected int        available = 0;
+  
+  // all slots: a view of frame_buffer, or direct memory if off_heap is set.
+  // Frames are written through it and read by the ByteBuffer paths.
+  protected ByteBuffer frame_store = ByteBuffer.wrap(frame_buffer);
+  protected volatile boolean off_heap = false;
+  
+  // per consumer thread, heap copies of off-heap frames and conversion 
+  // output for the ByteBuffer paths without a ByteBuffer kernel
+  static final private int STAGING_FRAME  = 0;
+  static final private int STAGING_OUTPUT = 1;
+  protected final ThreadLocal<byte[][]> staging = new ThreadLocal<byte[][]>() {
+    protected byte[][] initialValue() {
+      return new byte[2][0];
+    }
+  };
+  
+  protected volatile Policy policy = Policy.OVERWRITE_NEWEST;
+  
+  // slot state and sequence number, pts and arrival time of the frame the 
+  // slot holds. The metadata is written before the slot becomes READY.
+  protected AtomicIntegerArray slot_state = new AtomicIntegerArray(0);
+  protected long[]             slot_seq   = new long[0];
+  protected int[]              slot_pts   = new int[0];
+  protected long[]             slot_time  = new long[0];
+  
+  // producer side, only accessed by the USB-thread.
+  // write_seq counts every frame, also the ones that are dropped.
+  protected int  write_slot = 0;
+  protected long write_seq  = 0;
+  
+  // consumer side, per consumer thread and for the listener: metadata of the
+  // last frame it got. Frames since then are dropped, for this consumer.
+  static protected class Consumer {
+    protected final FrameInfo info = new FrameInfo();
+    protected int generation = -1; // resize() starts a new one
+  }
+  protected final ThreadLocal<Consumer> consumer = new ThreadLocal<Consumer>() {
+    protected Consumer initialValue() {
+      return new Consumer();
+    }
+  };
+  protected final Consumer listener_consumer = new Consumer();
+  protected volatile int   generation = 0;
+  
+  protected Statistics stats = new Statistics();
+  
+  // frame dimensions, for the frames handed to the listener
+  protected int frame_width;
+  protected int frame_height;
+  
+  // push consumer: a dispatch task runs on the executor while frames are queued
+  protected volatile FrameListener listener = null;
+  protected volatile Executor      listener_executor = null;
+  protected Frame[]                frames = new Frame[0];
+  protected final AtomicInteger    dispatch_requests = new AtomicInteger(0);
+  protected final Runnable         dispatch_task = new Runnable() {
+    public void run() {
+      dispatch();
+    }
+  };
+  
+  // consumer side, threads parked in claim(), waiting for a frame
+  protected final ConcurrentLinkedQueue<Thread> waiting_consumers = new ConcurrentLinkedQueue<Thread>();
+  
+  // set when the stream stopped, waiting consumers return
+  protected volatile boolean closed = false;
   
   
   protected boolean flip_vert = false;
+  
+  // pool for the row-parallel Debayer, null for debayering on the calling thread
+  protected volatile ForkJoinPool debayer_pool = null;
 
   public FrameQueue(){
   }
   
   public void resize(int frame_size){
-    this.frame_size = frame_size;
-    this.frame_buffer = new byte[frame_size * num_frames];
+    resize(frame_size, num_frames);
+  }
+  
+  public void resize(int frame_size, int num_frames){
+    num_frames = Math.max(num_frames, 2);
+    
+    // frames still claimed by a consumer, e.g. leased by acquire() or held by
+    // a listener, keep their memory and slot. The ring is then replaced, they
+    // are released to the old one, see Frame.
+    boolean claimed = false;
+    for(int i = 0; i < slot_state.length(); i++){
+      claimed |= slot_state.get(i) == READING;
+    }
+    
+    if(claimed || this.frame_size != frame_size || this.num_frames != num_frames || frame_store.isDirect() != off_heap){
+      this.frame_size   = frame_size;
+      this.num_frames   = num_frames;
+      if(off_heap){
+        this.frame_buffer = new byte[0];
+        this.frame_store  = ByteBuffer.allocateDirect(frame_size * num_frames);
+      } else {
+        this.frame_buffer = new byte[frame_size * num_frames];
+        this.frame_store  = ByteBuffer.wrap(frame_buffer);
+      }
+      this.slot_state   = new AtomicIntegerArray(num_frames);
+      this.slot_seq     = new long[num_frames];
+      this.slot_pts     = new int [num_frames];
+      this.slot_time    = new long[num_frames];
+      this.frames       = new Frame[num_frames];
+      for(int i = 0; i < num_frames; i++){
+        frames[i] = new Frame(this, i);
+      }
+    }
+    
+    // all slots free, the producer starts writing to the first one
+    for(int i = 0; i < num_frames; i++){
+      slot_state.set(i, FREE);
+      slot_seq[i] = 0;
+    }
+    write_slot = 0;
+    write_seq  = 0;
+    generation++;
+    stats.restart();
+    slot_state.set(write_slot, WRITING);
+    closed = false;
+  }
+  
+  /**
+   * No more frames are coming, a consumer waiting for one returns without.
+   * Frames that are still queued can be read. Undone by resize().
+   */
+  protected void close(){
+    closed = true;
+    wakeConsumers();
+  }
+  
+  // unparks all waiting consumers, the ones that find no frame park again
+  private void wakeConsumers(){
+    if(!waiting_consumers.isEmpty()){
+      for(Thread consumer : waiting_consumers){
+        LockSupport.unpark(consumer);
+      }
+    }
+  }
+  
+  public int getNumFrames(){
+    return num_frames;
+  }
+  
+  /**
+   * Keeps the frames in direct memory instead of a byte[], from the next 
+   * resize() on. The payloads are then copied from the USB transfers to 
+   * native memory, and Frame.getBayer() and the ByteBuffer getFrame() hand 
+   * it out without a copy to the heap.
+   */
+  public void setOffHeap(boolean off_heap){
+    this.off_heap = off_heap;
+  }
+  
+  public boolean isOffHeap(){
+    return frame_store.isDirect();
+  }
+  
+  public void setPolicy(Policy policy){
+    this.policy = policy;
+  }
+  
+  public Policy getPolicy(){
+    return policy;
+  }
+  
+  /**
+   * Metadata of the last frame the calling thread got from this queue. Each
+   * thread has its own, the dropped frames are the ones it missed.
+   */
+  public FrameInfo getFrameInfo(){
+    return consumer.get().info;
   }
 
   protected int GetFrameBufferStart(){
-    return frame_buffer_ptr;
+    return getFramePtr(write_slot);
   }
 
-  protected int Enqueue(){
+  
+  /**
+   * Called by the producer when the frame in the current write-slot is 
+   * complete. Publishes the frame and returns the frame pointer to write the
+   * next frame to.<br>
+   * <br>
+   * pts is the frame's UVC presentation time stamp, time the System.nanoTime()
+   * at which the transfer holding its last packet completed.<br>
+   * <br>
+   * The producer always owns one slot and claimed slots are never touched, 
+   * so this never waits for the consumer. With Policy.DROP_OLDEST a slot can
+   * be lost to the consumer at most once per call, see nextWriteSlot().
+   */
+  protected int Enqueue(int pts, long time){
 //    System.out.println("Enqueue");
-    int new_frame_ptr = 0;
-    synchronized(this) {
-      
-      // Unlike traditional producer/consumer, we don't block the producer if the 
-      // buffer is full (ie. the consumer is not reading data fast enough).
-      // Instead, if the buffer is full, we simply return the current 
-      // frame pointer, causing the producer to overwrite the previous frame.
-      // This allows performance to degrade gracefully: if the consumer is not 
-      // fast enough (< Camera FPS), it will miss frames, but if it is fast 
-      // enough (>= Camera FPS), it will see everything.
-      //
-      // Note that because the the producer is writing directly to the 
-      // ring buffer, we can only ever be a maximum of num_frames-1 ahead of the 
-      // consumer, otherwise the producer could overwrite the frame the consumer 
-      // is currently reading (in case of a slow consumer)
-      if (available >= num_frames - 1) {
-        return frame_buffer_ptr + head * frame_size;
+    
+    write_seq++;
+    stats.frameCompleted(time);
+    
+    // Unlike traditional producer/consumer, we don't block the producer if the 
+    // buffer is full (ie. the consumer is not reading data fast enough).
+    // Instead, depending on the policy, either the frame that just completed or
+    // the oldest queued frame is dropped.
+    // This allows performance to degrade gracefully: if the consumer is not 
+    // fast enough (< Camera FPS), it will miss frames, but if it is fast 
+    // enough (>= Camera FPS), it will see everything.
+    //
+    // Note that because the the producer is writing directly to the 
+    // ring buffer, it never touches a slot that is READY or READING without
+    // owning it first, so the consumer is never overwritten while reading.
+    int next_slot = nextWriteSlot();
+    
+    if(next_slot == -1){
+      stats.inc(Statistics.Counter.FRAMES_OVERWRITTEN);
+      return getFramePtr(write_slot);
+    }
+    
+    // Note: we don't need to copy any data to the buffer since the USB packets 
+    // are directly written to the frame buffer.
+    // We just need to publish the slot to signal to the consumer 
+    // that a new frame is available
+    slot_seq [write_slot] = write_seq;
+    slot_pts [write_slot] = pts;
+    slot_time[write_slot] = time;
+    slot_state.set(write_slot, READY);
+    write_slot = next_slot;
+    
+    // Signal consumers that data became available
+    wakeConsumers();
+    
+    // Schedule the listener, unless a dispatch task is already active
+    if(listener != null && dispatch_requests.getAndIncrement() == 0){
+      try {
+        listener_executor.execute(dispatch_task);
+      } catch (RejectedExecutionException e) {
+        dispatch_requests.set(0);
+      }
+    }
+    
+    return getFramePtr(write_slot);
+  }
+  
+  
+  /**
+   * Called by the producer when an incomplete frame is discarded. The frame
+   * still gets a sequence number, so it is counted as dropped.
+   */
+  protected void Discard(){
+    write_seq++;
+    stats.inc(Statistics.Counter.FRAMES_DISCARDED);
+  }
+  
+  
+  // producer: acquire the next slot to write to, or -1 if the ring is full
+  private int nextWriteSlot(){
+    for(;;){
+      // FREE slots are only ever taken by the producer
+      for(int i = 1; i < num_frames; i++){
+        int slot = (write_slot + i) % num_frames;
+        if(slot_state.get(slot) == FREE){
+          slot_state.set(slot, WRITING);
+          return slot;
+        }
       }
       
-      try {
-        while(dequeuing) wait();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+      Policy policy = this.policy;
+      if(policy != Policy.DROP_OLDEST && policy != Policy.LATEST){
+        return -1;
       }
       
-      // Note: we don't need to copy any data to the buffer since the USB packets 
-      // are directly written to the frame buffer.
-      // We just need to update head and available count to signal to the consumer 
-      // that a new frame is available
-      head = (head + 1) % num_frames;
-      available++;
+      // take back the oldest queued frame. This only fails if the consumer
+      // claimed it in the meantime, which in turn frees its previous slot.
+      int slot = findReady();
+      if(slot == -1){
+        return -1;
+      }
+      if(slot_state.compareAndSet(slot, READY, WRITING)){
+        stats.inc(Statistics.Counter.FRAMES_OVERWRITTEN);
+        return slot;
+      }
+    }
+  }
+  
+  
+  // slot holding the newest queued frame, or -1 if there is none
+  private int findNewest(){
+    int  slot = -1;
+    long seq  = Long.MIN_VALUE;
+    for(int i = 0; i < num_frames; i++){
+      if(slot_state.get(i) == READY && slot_seq[i] > seq){
+        seq  = slot_seq[i];
+        slot = i;
+      }
+    }
+    return slot;
+  }
+  
+  
+  // consumer, Policy.LATEST: frees the queued frames older than seq
+  private void skipOlder(long seq){
+    for(int i = 0; i < num_frames; i++){
+      if(slot_state.get(i) == READY && slot_seq[i] < seq && slot_state.compareAndSet(i, READY, FREE)){
+        stats.incShared(Statistics.Counter.FRAMES_SKIPPED);
+      }
+    }
+  }
   
-      // Determine the next frame pointer that the producer should write to
-      new_frame_ptr = frame_buffer_ptr + head * frame_size;
   
-      // Signal consumer that data became available
-      notify();
+  // slot holding the oldest queued frame, or -1 if there is none
+  private int findReady(){
+    int  slot = -1;
+    long seq  = Long.MAX_VALUE;
+    for(int i = 0; i < num_frames; i++){
+      if(slot_state.get(i) == READY && slot_seq[i] < seq){
+        seq  = slot_seq[i];
+        slot = i;
+      }
     }
-    return new_frame_ptr;
+    return slot;
   }
   
-  boolean dequeuing = false;
   
   protected boolean isAvailable(){
-    return available > 0;
+    for(int i = 0; i < num_frames; i++){
+      if(slot_state.get(i) == READY){
+        return true;
+      }
+    }
+    return false;
   }
   
   boolean wait_for_frame_to_be_available = true;
+  
+  
+  /**
+   * Consumer: claims the oldest queued frame, or returns -1 if there is none.
+   * With Policy.LATEST the newest frame is claimed, older ones are skipped.
+   * The claimed slot is owned by the consumer until it is released, the 
+   * producer never writes to it, so it can be read without holding any lock.
+   * <br>
+   * The calling thread's FrameInfo, see getFrameInfo(), is updated to the
+   * metadata of the claimed frame.<br>
+   * If wait is true, this waits until a frame is available or the queue is
+   * closed. An interrupt doesn't end the wait, the interrupt status is set 
+   * again before returning.
+   */
+  protected int claim(boolean wait){
+    return claim(wait, consumer.get());
+  }
+  
+  // same as claim(boolean), for the given consumer
+  private int claim(boolean wait, Consumer consumer){
+    try {
+      return claim(wait ? -1 : 0, false, consumer);
+    } catch (InterruptedException e) {
+      // only thrown if interruptible
+      return -1;
+    }
+  }
+  
+  
+  /**
+   * Same as claim(boolean), waiting at most timeout_ns nanoseconds for a 
+   * frame: 0 doesn't wait, a negative timeout waits until a frame is 
+   * available or the queue is closed. If interruptible is true, an interrupt
+   * throws an InterruptedException and clears the interrupt status, 
+   * otherwise it is ignored and the status is set again before returning.
+   */
+  protected int claim(long timeout_ns, boolean interruptible) throws InterruptedException {
+    return claim(timeout_ns, interruptible, consumer.get());
+  }
+  
+  // same as claim(long, boolean), for the given consumer
+  private int claim(long timeout_ns, boolean interruptible, Consumer consumer) throws InterruptedException {
+    long deadline = System.nanoTime() + timeout_ns;
+    boolean interrupted = false;
+    try {
+      for(;;){
+        boolean latest = policy == Policy.LATEST;
+        int slot = latest ? findNewest() : findReady();
+        if(slot != -1){
+          if(slot_state.compareAndSet(slot, READY, READING)){
+            long seq = slot_seq[slot];
+            if(latest){
+              skipOlder(seq);
+            }
+            // frames missed by this consumer since its last one
+            int  generation = this.generation;
+            long last_seq   = consumer.generation == generation ? consumer.info.sequence : 0;
+            consumer.generation = generation;
+            consumer.info.set(seq, slot_pts[slot], slot_time[slot], seq - last_seq - 1);
+            stats.incShared(Statistics.Counter.FRAMES_DELIVERED);
+            stats.recordShared(Statistics.Timing.QUEUE_LATENCY, System.nanoTime() - slot_time[slot]);
+            return slot;
+          }
+          continue;
+        }
+        
+        // clearing the status, park() would not wait otherwise
+        if(Thread.interrupted()){
+          if(interruptible){
+            throw new InterruptedException();
+          }
+          interrupted = true;
+        }
+        if(timeout_ns == 0 || closed){
+          return -1;
+        }
+        long remaining = deadline - System.nanoTime();
+        if(timeout_ns > 0 && remaining <= 0){
+          return -1;
+        }
+        
+        // registered before checking again, a frame or close() after the 
+        // check unparks this thread
+        Thread waiter = Thread.currentThread();
+        waiting_consumers.add(waiter);
+        try {
+          if(!isAvailable() && !closed){
+            if(timeout_ns > 0){
+              LockSupport.parkNanos(this, remaining);
+            } else {
+              LockSupport.park(this);
+            }
+          }
+        } finally {
+          waiting_consumers.remove(waiter);
+        }
+      }
+    } finally {
+      if(interrupted){
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
 
   protected void Dequeue(byte[] new_frame, int frame_width, int frame_height, PS3Eye.Format format){   
     
-    synchronized(this) {
-      
-      if(wait_for_frame_to_be_available){
+    int slot = claim(wait_for_frame_to_be_available);
+    if(slot == -1){
+      return;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convert(frame, new_frame, frame_width, frame_height, format);
+    } finally {
+      release(frame);
+    }
+  }
+  
+  
+  protected void Dequeue(int[] pixels, int frame_width, int frame_height, PS3Eye.Format format){   
+    
+    int slot = claim(wait_for_frame_to_be_available);
+    if(slot == -1){
+      return;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convert(frame, pixels, frame_width, frame_height, format);
+    } finally {
+      release(frame);
+    }
+  }
+  
+  
+  /**
+   * Same as Dequeue(), waiting at most timeout_ns for a frame, see 
+   * claim(long, boolean). Returns true if a frame was written.
+   */
+  protected boolean Dequeue(byte[] new_frame, int frame_width, int frame_height, PS3Eye.Format format, long timeout_ns, boolean interruptible) throws InterruptedException {   
+    
+    int slot = claim(timeout_ns, interruptible);
+    if(slot == -1){
+      return false;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convert(frame, new_frame, frame_width, frame_height, format);
+    } finally {
+      release(frame);
+    }
+    return true;
+  }
+  
+  
+  /**
+   * Same as Dequeue(), waiting at most timeout_ns for a frame, see 
+   * claim(long, boolean). Returns true if a frame was written.
+   */
+  protected boolean Dequeue(int[] pixels, int frame_width, int frame_height, PS3Eye.Format format, long timeout_ns, boolean interruptible) throws InterruptedException {   
+    
+    int slot = claim(timeout_ns, interruptible);
+    if(slot == -1){
+      return false;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convert(frame, pixels, frame_width, frame_height, format);
+    } finally {
+      release(frame);
+    }
+    return true;
+  }
+  
+  
+  /**
+   * Same as Dequeue(), into a ByteBuffer, at its position.
+   */
+  protected void Dequeue(ByteBuffer new_frame, int frame_width, int frame_height, PS3Eye.Format format){   
+    
+    int slot = claim(wait_for_frame_to_be_available);
+    if(slot == -1){
+      return;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convert(frame, new_frame, frame_width, frame_height, format);
+    } finally {
+      release(frame);
+    }
+  }
+  
+  
+  /**
+   * Same as Dequeue(), but only converts the given rectangle of the frame.
+   */
+  protected void Dequeue(byte[] new_frame, int frame_width, int frame_height, PS3Eye.Format format, int roi_x, int roi_y, int roi_w, int roi_h){   
+    
+    int slot = claim(wait_for_frame_to_be_available);
+    if(slot == -1){
+      return;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convert(frame, new_frame, frame_width, frame_height, format, roi_x, roi_y, roi_w, roi_h);
+    } finally {
+      release(frame);
+    }
+  }
+  
+  
+  /**
+   * Same as Dequeue(), but only converts the given rectangle of the frame.
+   */
+  protected void Dequeue(int[] pixels, int frame_width, int frame_height, PS3Eye.Format format, int roi_x, int roi_y, int roi_w, int roi_h){   
+    
+    int slot = claim(wait_for_frame_to_be_available);
+    if(slot == -1){
+      return;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convert(frame, pixels, frame_width, frame_height, format, roi_x, roi_y, roi_w, roi_h);
+    } finally {
+      release(frame);
+    }
+  }
+  
+  
+  /**
+   * Same as Dequeue(), but converts the frame at half resolution, see 
+   * Debayer.rgbHalf().
+   */
+  protected void DequeueHalf(byte[] new_frame, int frame_width, int frame_height, PS3Eye.Format format){   
+    
+    int slot = claim(wait_for_frame_to_be_available);
+    if(slot == -1){
+      return;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convertHalf(frame, new_frame, frame_width, frame_height, format);
+    } finally {
+      release(frame);
+    }
+  }
+  
+  
+  /**
+   * Same as Dequeue(), but converts the frame at half resolution, see 
+   * Debayer.argbHalf().
+   */
+  protected void DequeueHalf(int[] pixels, int frame_width, int frame_height, PS3Eye.Format format){   
+    
+    int slot = claim(wait_for_frame_to_be_available);
+    if(slot == -1){
+      return;
+    }
+    Frame frame = frames[slot];
+    
+    try {
+      convertHalf(frame, pixels, frame_width, frame_height, format);
+    } finally {
+      release(frame);
+    }
+  }
+  
+  
+  /**
+   * Pull consumer, without a copy: claims the oldest queued frame and leases
+   * it as a Frame. The slot stays claimed, and is skipped by the producer, 
+   * until the last Frame.release(). Returns null if no frame is queued and 
+   * wait is false, or if the queue was closed.
+   */
+  protected Frame acquire(boolean wait){
+    Consumer consumer = this.consumer.get();
+    int slot = claim(wait, consumer);
+    if(slot == -1){
+      return null;
+    }
+    Frame frame = frames[slot];
+    frame.open(frame_width, frame_height, consumer.info);
+    return frame;
+  }
+  
+  /**
+   * Same as acquire(boolean), waiting at most timeout_ns for a frame, see 
+   * claim(long, boolean).
+   */
+  protected Frame acquire(long timeout_ns, boolean interruptible) throws InterruptedException {
+    Consumer consumer = this.consumer.get();
+    int slot = claim(timeout_ns, interruptible, consumer);
+    if(slot == -1){
+      return null;
+    }
+    Frame frame = frames[slot];
+    frame.open(frame_width, frame_height, consumer.info);
+    return frame;
+  }
+  
+  
+  /**
+   * Push consumer: hands all queued frames to the listener, oldest first.
+   * Only one dispatch task is active at a time, Enqueue() only schedules a 
+   * new one when dispatch_requests was 0, so frames are delivered in order.
+   */
+  protected void dispatch(){
+    int requests = dispatch_requests.get();
+    do {
+      FrameListener listener = this.listener;
+      int slot;
+      while(listener != null && (slot = claim(false, listener_consumer)) != -1){
+        Frame frame = frames[slot];
+        frame.open(frame_width, frame_height, listener_consumer.info);
         try {
-          while(!isAvailable()) wait();
-        } catch (InterruptedException e) {
+          listener.frameReceived(frame);
+        } catch (RuntimeException e) {
           e.printStackTrace();
+        } finally {
+          frame.release();
         }
       }
-      
-      dequeuing = true;
-      
+    } while((requests = dispatch_requests.addAndGet(-requests)) != 0);
+  }
+  
+  
+  // Copies or converts the frame of a claimed slot
+  protected void convert(Frame frame, byte[] new_frame, int frame_width, int frame_height, PS3Eye.Format format){
+    long time = System.nanoTime();
+    
+    if (format == PS3Eye.Format.Bayer){
       // Copy from internal buffer
-      int source_ptr = frame_buffer_ptr + frame_size * tail;
+      ByteBuffer source = frame.store.duplicate();
+      source.position(frame.ptr);
+      source.get(new_frame, 0, frame.size);
+      stats.recordShared(Statistics.Timing.DEBAYER_DURATION, System.nanoTime() - time);
+      return;
+    }
+    
+    byte[] source     = heapFrame(frame);
+    int    source_ptr = heapFramePtr(frame);
+
+    if (format == PS3Eye.Format.BGR ||  format == PS3Eye.Format.RGB){
+      Debayer(source, frame_width, frame_height, source_ptr, new_frame, format == PS3Eye.Format.BGR);
+    }
+    else if (format == PS3Eye.Format.Gray){
+      Debayer.gray(source, source_ptr, frame_width, frame_height, flip_vert, new_frame);
+    }
+    else if (format == PS3Eye.Format.I420){
+      Debayer.i420(source, source_ptr, frame_width, frame_height, flip_vert, new_frame);
+    }
+    else if (format == PS3Eye.Format.NV12){
+      Debayer.nv12(source, source_ptr, frame_width, frame_height, flip_vert, new_frame);
+    }
+    
+    stats.recordShared(Statistics.Timing.DEBAYER_DURATION, System.nanoTime() - time);
+  }
   
-      if (format == PS3Eye.Format.Bayer){
-        System.arraycopy(frame_buffer, source_ptr, new_frame, 0, frame_size);
-      }
-      else if (format == PS3Eye.Format.BGR ||  format == PS3Eye.Format.RGB){
-        Debayer(frame_width, frame_height, source_ptr, new_frame, format == PS3Eye.Format.BGR);
-      }
+  
+  // Converts the frame of a claimed slot, straight to the packed pixels
+  protected void convert(Frame frame, int[] pixels, int frame_width, int frame_height, PS3Eye.Format format){
+    long time = System.nanoTime();
+    
+    byte[] source     = heapFrame(frame);
+    int    source_ptr = heapFramePtr(frame);
 
-      // Update tail and available count
-      tail = (tail + 1) % num_frames;
-      available--;
-      dequeuing = false;
-      
-      notify();
-   }
+    if (format == PS3Eye.Format.Bayer){
+      Debayer.bayerARGB(source, source_ptr, frame.size, pixels);
+    }
+    else if (format == PS3Eye.Format.BGR ||  format == PS3Eye.Format.RGB){
+      DebayerARGB(source, frame_width, frame_height, source_ptr, pixels, format == PS3Eye.Format.BGR);
+    }
+    else if (format == PS3Eye.Format.Gray){
+      Debayer.grayARGB(source, source_ptr, frame_width, frame_height, flip_vert, pixels);
+    }
+    else {
+      throw new IllegalArgumentException(format + " is not available as packed pixels");
+    }
+    
+    stats.recordShared(Statistics.Timing.DEBAYER_DURATION, System.nanoTime() - time);
   }
+  
+  
+  // Copies or converts a rectangle of the frame of a claimed slot
+  protected void convert(Frame frame, byte[] new_frame, int frame_width, int frame_height, PS3Eye.Format format, int roi_x, int roi_y, int roi_w, int roi_h){
+    long time = System.nanoTime();
+    
+    byte[] source     = heapFrame(frame);
+    int    source_ptr = heapFramePtr(frame);
 
-  static final private int UB = 0xFF;
+    if (format == PS3Eye.Format.Bayer){
+      Debayer.bayer(source, source_ptr, frame_width, frame_height, roi_x, roi_y, roi_w, roi_h, new_frame);
+    }
+    else if (format == PS3Eye.Format.BGR ||  format == PS3Eye.Format.RGB){
+      Debayer.rgb(source, source_ptr, frame_width, frame_height, flip_vert, roi_x, roi_y, roi_w, roi_h, new_frame, format == PS3Eye.Format.BGR);
+    }
+    else if (format == PS3Eye.Format.Gray){
+      Debayer.gray(source, source_ptr, frame_width, frame_height, flip_vert, roi_x, roi_y, roi_w, roi_h, new_frame);
+    }
+    else {
+      throw new IllegalArgumentException(format + " is not available for a region of interest");
+    }
+    
+    stats.recordShared(Statistics.Timing.DEBAYER_DURATION, System.nanoTime() - time);
+  }
+  
+  
+  // Converts a rectangle of the frame of a claimed slot to packed pixels
+  protected void convert(Frame frame, int[] pixels, int frame_width, int frame_height, PS3Eye.Format format, int roi_x, int roi_y, int roi_w, int roi_h){
+    long time = System.nanoTime();
+    
+    byte[] source     = heapFrame(frame);
+    int    source_ptr = heapFramePtr(frame);
 
-  protected void Debayer(int frame_width, int frame_height, int inBayer_ptr, byte[] outBuffer, boolean inBGR){
-    // PSMove output is in the following Bayer format (GRBG):
-    //
-    // G R G R G R
-    // B G B G B G
-    // G R G R G R
-    // B G B G B G
-    //
-    // This is the normal Bayer pattern shifted left one place.
-    
-    int num_output_channels = 3;
-    int source_stride       = frame_width;
-    int source_row          = inBayer_ptr;                            // Start at first bayer pixel
-    int dest_stride         = frame_width * num_output_channels;
-    int dest_row            = dest_stride + num_output_channels + 1;  // We start outputting at the second pixel of the second row's G component
-    int swap_br             = inBGR ? 1 : -1;
-    
-    byte[] buffer = frame_buffer;
-    
-    int off = flip_vert ? 1 : 0;
-    
-    // Fill rows 1 to height-1 of the destination buffer. First and last row are filled separately (they are copied from the second row and second-to-last rows respectively)
-    for (int y = off; y < frame_height-2 + off; source_row += source_stride, dest_row += dest_stride, ++y){
-//      try {
-//        if(y%5 == 0){
-//          wait(2);
-////          Thread.sleep(2);
-//        }
-//      } catch (InterruptedException e) {
-//        e.printStackTrace();
-//      }
-      int source     = source_row;
-      int source_end = source + (source_stride-2); // -2 to deal with the fact that we're starting at the second pixel of the row and should end at the second-to-last pixel of the row (first and last are filled separately)
-      int dest       = dest_row;
-      
- 
-      // Row starting with Green
-      if (y % 2 == 0){
-        // Fill first pixel (green)
-        outBuffer[dest - swap_br] = (byte) ((((buffer[source + source_stride    ]&UB) + (buffer[source + source_stride * 1 + 2]&UB) + 1) >> 1)&UB);
-        outBuffer[dest]           =            buffer[source + source_stride + 1];
-        outBuffer[dest + swap_br] = (byte) ((((buffer[source + 1                ]&UB) + (buffer[source + source_stride * 2 + 1]&UB) + 1) >> 1)&UB);
-
-        source++;
-        dest += num_output_channels;
-
-        // Fill remaining pixel
-        for (; source <= source_end - 2; source += 2, dest += num_output_channels * 2){
-          // Blue pixel
-          int cur_pixel  = dest;
-          outBuffer[cur_pixel - swap_br] =          buffer[source + source_stride + 1];
-          outBuffer[cur_pixel]           = (byte) ( (((buffer[source + 1]&UB) + (buffer[source + source_stride]&UB) + (buffer[source+source_stride + 2]&UB) + (buffer[source+source_stride * 2 + 1]&UB) + 2) >> 2)&UB);
-          outBuffer[cur_pixel + swap_br] = (byte) ( (((buffer[source    ]&UB) + (buffer[source + 2            ]&UB) + (buffer[source+source_stride * 2]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 2) >> 2)&UB);       
-
-          // Green pixel
-          int next_pixel = cur_pixel + num_output_channels;
-          outBuffer[next_pixel - swap_br] = (byte) ( (((buffer[source + source_stride + 1]&UB) + (buffer[source+source_stride + 3    ]&UB) + 1) >> 1)&UB);         
-          outBuffer[next_pixel]           =          buffer[source + source_stride + 2];
-          outBuffer[next_pixel + swap_br] = (byte) ( (((buffer[source + 2                ]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 1) >> 1)&UB);
-        }
-      } else {
-        for (; source <= source_end - 2; source += 2, dest += num_output_channels * 2) {
-          // Red pixel
-          int cur_pixel = dest;
-          outBuffer[cur_pixel - swap_br] = (byte) ( (((buffer[source + 0]&UB) + (buffer[source + 2            ]&UB) + (buffer[source+source_stride * 2]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 2) >> 2)&UB);
-          outBuffer[cur_pixel]           = (byte) ( (((buffer[source + 1]&UB) + (buffer[source + source_stride]&UB) + (buffer[source+source_stride + 2]&UB) + (buffer[source+source_stride * 2 + 1]&UB) + 2) >> 2)&UB);
-          outBuffer[cur_pixel + swap_br] =          buffer[source+source_stride + 1];
-
-          // Green pixel
-          int next_pixel = cur_pixel+num_output_channels;
-          outBuffer[next_pixel - swap_br] = (byte) ( (((buffer[source + 2                ]&UB) + (buffer[source+source_stride * 2 + 2]&UB) + 1) >> 1)&UB);
-          outBuffer[next_pixel]           =          buffer[source + source_stride + 2];
-          outBuffer[next_pixel + swap_br] = (byte) ( (((buffer[source + source_stride + 1]&UB) + (buffer[source+source_stride + 3    ]&UB) + 1) >> 1)&UB);
-        }
-      }
+    if (format == PS3Eye.Format.Bayer){
+      Debayer.bayerARGB(source, source_ptr, frame_width, frame_height, roi_x, roi_y, roi_w, roi_h, pixels);
+    }
+    else if (format == PS3Eye.Format.BGR ||  format == PS3Eye.Format.RGB){
+      Debayer.argb(source, source_ptr, frame_width, frame_height, flip_vert, roi_x, roi_y, roi_w, roi_h, pixels, format == PS3Eye.Format.BGR);
+    }
+    else if (format == PS3Eye.Format.Gray){
+      Debayer.grayARGB(source, source_ptr, frame_width, frame_height, flip_vert, roi_x, roi_y, roi_w, roi_h, pixels);
+    }
+    else {
+      throw new IllegalArgumentException(format + " is not available as packed pixels");
+    }
+    
+    stats.recordShared(Statistics.Timing.DEBAYER_DURATION, System.nanoTime() - time);
+  }
+  
+  
+  // Converts the frame of a claimed slot at half resolution, one pixel per 2x2 quad
+  protected void convertHalf(Frame frame, byte[] new_frame, int frame_width, int frame_height, PS3Eye.Format format){
+    long time = System.nanoTime();
+    
+    byte[] source     = heapFrame(frame);
+    int    source_ptr = heapFramePtr(frame);
 
-      if (source < source_end){
-        outBuffer[dest - swap_br] =          buffer[source + source_stride + 1];
-        outBuffer[dest]           = (byte) ( (((buffer[source + 1                ]&UB) + (buffer[source + source_stride]&UB) + (buffer[source + source_stride + 2]&UB) + (buffer[source + source_stride * 2 + 1]&UB) + 2) >> 2)&UB);     
-        outBuffer[dest + swap_br] = (byte) ( (((buffer[source + 0                ]&UB) + (buffer[source + 2            ]&UB) + (buffer[source + source_stride * 2]&UB) + (buffer[source + source_stride * 2 + 2]&UB) + 2) >> 2)&UB);    
+    if (format == PS3Eye.Format.Bayer){
+      Debayer.bayerHalf(source, source_ptr, frame_width, frame_height, new_frame);
+    }
+    else if (format == PS3Eye.Format.BGR ||  format == PS3Eye.Format.RGB){
+      Debayer.rgbHalf(source, source_ptr, frame_width, frame_height, flip_vert, new_frame, format == PS3Eye.Format.BGR);
+    }
+    else if (format == PS3Eye.Format.Gray){
+      Debayer.grayHalf(source, source_ptr, frame_width, frame_height, flip_vert, new_frame);
+    }
+    else {
+      throw new IllegalArgumentException(format + " is not available at half resolution");
+    }
+    
+    stats.recordShared(Statistics.Timing.DEBAYER_DURATION, System.nanoTime() - time);
+  }
+  
+  
+  // Converts the frame of a claimed slot at half resolution to packed pixels
+  protected void convertHalf(Frame frame, int[] pixels, int frame_width, int frame_height, PS3Eye.Format format){
+    long time = System.nanoTime();
+    
+    byte[] source     = heapFrame(frame);
+    int    source_ptr = heapFramePtr(frame);
 
-        source++;
-        dest += num_output_channels;
-      }
+    if (format == PS3Eye.Format.Bayer){
+      Debayer.bayerHalfARGB(source, source_ptr, frame_width, frame_height, pixels);
+    }
+    else if (format == PS3Eye.Format.BGR ||  format == PS3Eye.Format.RGB){
+      Debayer.argbHalf(source, source_ptr, frame_width, frame_height, flip_vert, pixels, format == PS3Eye.Format.BGR);
+    }
+    else if (format == PS3Eye.Format.Gray){
+      Debayer.grayHalfARGB(source, source_ptr, frame_width, frame_height, flip_vert, pixels);
+    }
+    else {
+      throw new IllegalArgumentException(format + " is not available as packed pixels");
+    }
+    
+    stats.recordShared(Statistics.Timing.DEBAYER_DURATION, System.nanoTime() - time);
+  }
+  
+  
+  // Copies or converts the frame of a claimed slot into a ByteBuffer, at its
+  // position. The position is advanced by the size of the frame.
+  protected void convert(Frame frame, ByteBuffer dst, int frame_width, int frame_height, PS3Eye.Format format){
+    long time = System.nanoTime();
+    
+    int source_ptr = frame.ptr;
+    int dst_ptr    = dst.position();
+    int num_bytes  = format.getFrameSize(frame_width, frame_height);
+    if(dst.remaining() < num_bytes){
+      throw new IllegalArgumentException("buffer has "+dst.remaining()+" bytes remaining, "+num_bytes+" are required");
+    }
 
-      // Fill first pixel of row (copy second pixel)
-      int first_pixel = dest_row - num_output_channels;
-      outBuffer[first_pixel - swap_br] = outBuffer[dest_row - swap_br];
-      outBuffer[first_pixel]           = outBuffer[dest_row];
-      outBuffer[first_pixel + swap_br] = outBuffer[dest_row + swap_br];
+    if (format == PS3Eye.Format.Bayer){
+      dst.put(frame.bayer.duplicate());
+    }
+    else if (format == PS3Eye.Format.BGR ||  format == PS3Eye.Format.RGB){
+      Debayer.rgb(frame.store, source_ptr, frame_width, frame_height, flip_vert, dst, dst_ptr, format == PS3Eye.Format.BGR);
+      dst.position(dst_ptr + num_bytes);
+    }
+    else {
+      // no ByteBuffer kernel, convert on the heap and copy
+      byte[] output = staging(STAGING_OUTPUT, num_bytes);
+      byte[] source = heapFrame(frame);
+      int    ptr    = heapFramePtr(frame);
+      if (format == PS3Eye.Format.Gray){
+        Debayer.gray(source, ptr, frame_width, frame_height, flip_vert, output);
+      }
+      else if (format == PS3Eye.Format.I420){
+        Debayer.i420(source, ptr, frame_width, frame_height, flip_vert, output);
+      }
+      else if (format == PS3Eye.Format.NV12){
+        Debayer.nv12(source, ptr, frame_width, frame_height, flip_vert, output);
+      }
+      dst.put(output, 0, num_bytes);
+    }
     
-      // Fill last pixel of row (copy second-to-last pixel). Note: dest row starts at the *second* pixel of the row, so dest_row + (width-2) * num_output_channels puts us at the last pixel of the row
-      int last_pixel           = dest_row + (frame_width - 2) * num_output_channels;
-      int second_to_last_pixel = last_pixel - num_output_channels;
-      
-      outBuffer[last_pixel-swap_br] = outBuffer[second_to_last_pixel - swap_br];
-      outBuffer[last_pixel]         = outBuffer[second_to_last_pixel];
-      outBuffer[last_pixel+swap_br] = outBuffer[second_to_last_pixel + swap_br];
+    stats.recordShared(Statistics.Timing.DEBAYER_DURATION, System.nanoTime() - time);
+  }
+  
+  
+  protected int getFramePtr(int slot){
+    return frame_buffer_ptr + frame_size * slot;
+  }
+  
+  
+  // The Bayer data of a claimed frame on the heap, for the byte[] kernels,
+  // starting at heapFramePtr(). Off-heap frames are copied to a staging array.
+  protected byte[] heapFrame(Frame frame){
+    if(!frame.store.isDirect()){
+      return frame.heap;
     }
+    byte[] heap = staging(STAGING_FRAME, frame.size);
+    ByteBuffer source = frame.store.duplicate();
+    source.position(frame.ptr);
+    source.get(heap, 0, frame.size);
+    return heap;
+  }
+  
+  protected int heapFramePtr(Frame frame){
+    return frame.store.isDirect() ? 0 : frame.ptr;
+  }
+  
+  // staging array of the calling thread, at least num_bytes long
+  private byte[] staging(int idx, int num_bytes){
+    byte[][] arrays = staging.get();
+    if(arrays[idx].length < num_bytes){
+      arrays[idx] = new byte[num_bytes];
+    }
+    return arrays[idx];
+  }
+  
+  
+  /**
+   * Consumer: hands a claimed frame's slot back to the producer. A frame 
+   * claimed before a resize() goes back to the ring it came from, which is 
+   * no longer used.
+   */
+  protected void release(Frame frame){
+    frame.slot_state.set(frame.slot, FREE);
+  }
 
-    // Fill first & last row
-    for (int i = 0; i < dest_stride; i++){
-      outBuffer[i]                                  = outBuffer[i + dest_stride];
-      outBuffer[i + (frame_height - 1)*dest_stride] = outBuffer[i + (frame_height - 2)*dest_stride];
+  protected void Debayer(int frame_width, int frame_height, int inBayer_ptr, byte[] outBuffer, boolean inBGR){
+    Debayer(frame_buffer, frame_width, frame_height, inBayer_ptr, outBuffer, inBGR);
+  }
+  
+  protected void Debayer(byte[] source, int frame_width, int frame_height, int inBayer_ptr, byte[] outBuffer, boolean inBGR){
+    ForkJoinPool pool = debayer_pool;
+    if(pool == null){
+      Debayer.rgb(source, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, inBGR);
+    } else {
+      Debayer.rgb(pool, source, inBayer_ptr, frame_width, frame_height, flip_vert, outBuffer, inBGR);
+    }
+  }
+  
+  protected void DebayerARGB(int frame_width, int frame_height, int inBayer_ptr, int[] outPixels, boolean inBGR){
+    DebayerARGB(frame_buffer, frame_width, frame_height, inBayer_ptr, outPixels, inBGR);
+  }
+  
+  protected void DebayerARGB(byte[] source, int frame_width, int frame_height, int inBayer_ptr, int[] outPixels, boolean inBGR){
+    ForkJoinPool pool = debayer_pool;
+    if(pool == null){
+      Debayer.argb(source, inBayer_ptr, frame_width, frame_height, flip_vert, outPixels, inBGR);
+    } else {
+      Debayer.argb(pool, source, inBayer_ptr, frame_width, frame_height, flip_vert, outPixels, inBGR);
     }
   }
 
 }
-
@@ -0,0 +1,400 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.util.ArrayDeque;
+
+
+/**
+ * 
+ * Groups the frames of several PS3Eyes by capture time.<br>
+ * <br>
+ * The synchronizer is the FrameListener of every camera. Incoming frames are
+ * retained, not copied, and kept per camera until a match is found: a set
+ * holds one frame per camera, all within the tolerance of the set's oldest 
+ * frame. Since each camera delivers its frames in order, a frame that can't
+ * be matched anymore is either dropped (Policy.COMPLETE) or delivered in an
+ * incomplete set (Policy.PARTIAL). A set is not waited for longer than the
+ * tolerance plus one frame interval (host clock), so a camera that doesn't 
+ * deliver frames doesn't stall the others. Its frames that arrive after a 
+ * newer set was decided are dropped.<br>
+ * <br>
+ * The capture time of a frame is its host arrival time (FrameInfo.
+ * getTimestamp()). Optionally the camera's PTS is used instead, mapped to 
+ * host time, which removes the arrival jitter of the USB transfers.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class FrameSynchronizer {
+  
+  static public enum Policy{
+    COMPLETE, // only complete sets are delivered, unmatched frames are dropped
+    PARTIAL , // unmatched frames are delivered in a set, missing cameras are null
+  }
+  
+  /**
+   * Receives the frame sets of a FrameSynchronizer.
+   */
+  static public interface Listener{
+    
+    /**
+     * Called once per set, in capture order, one set at a time. frames[i] is 
+     * the frame of the i-th camera, or null in an incomplete set. The frames
+     * are valid until this method returns, see FrameListener for keeping 
+     * them longer. It is called on the listener thread of one of the 
+     * cameras, the other cameras keep adding frames meanwhile.
+     */
+    public void framesReceived(Frame[] frames);
+  }
+  
+  // per frame, the PTS mapping follows the host clock by this much at least
+  static final private long PTS_OFFSET_LEAK = 2000;
+  
+  private final PS3Eye[] cameras;
+  private final Pending[] pending;
+  private final Frame[]   set;
+  
+  private Listener listener;
+  private Policy   policy      = Policy.COMPLETE;
+  private long     tolerance   = 8000000L; // nanoseconds
+  private int      max_pending = 2;
+  private double   pts_clock   = 0;        // Hz, 0: arrival time is used
+  
+  private long sets_delivered = 0;
+  private long frames_dropped = 0;
+  
+  // matched sets, delivered in order by one thread at a time, outside of the
+  // lock
+  private final ArrayDeque<Frame[]> ready = new ArrayDeque<Frame[]>();
+  private boolean delivering = false;
+  
+  // capture time of the last decided set, older frames are dropped
+  private long decided_time = Long.MIN_VALUE;
+  
+  
+  public FrameSynchronizer(PS3Eye ... cameras){
+    this.cameras = cameras.clone();
+    this.pending = new Pending[cameras.length];
+    this.set     = new Frame  [cameras.length];
+  }
+  
+  
+  /**
+   * Max. difference of the capture times in a set, in nanoseconds. The 
+   * default is 8 ms, about half a frame at 60 fps.
+   */
+  synchronized public void setTolerance(long tolerance){
+    this.tolerance = tolerance;
+  }
+  
+  synchronized public void setPolicy(Policy policy){
+    this.policy = policy;
+  }
+  
+  /**
+   * Max. number of frames per camera that wait for a match, default is 2.
+   * Each camera's queue depth is raised to 2 + max_pending in start().
+   */
+  synchronized public void setMaxPending(int max_pending){
+    this.max_pending = Math.max(max_pending, 1);
+  }
+  
+  /**
+   * Match frames by the camera's presentation time stamp, which counts at 
+   * the given clock rate. 0 (default) matches by host arrival time.
+   * 
+   * @param pts_clock PTS clock in Hz
+   */
+  synchronized public void setPTSClock(double pts_clock){
+    this.pts_clock = pts_clock;
+  }
+  
+  synchronized public long getSetsDelivered(){
+    return sets_delivered;
+  }
+  
+  synchronized public long getFramesDropped(){
+    return frames_dropped;
+  }
+  
+  
+  /**
+   * Starts delivering frame sets to the given listener. The cameras must be
+   * started separately.
+   */
+  public void start(Listener listener){
+    synchronized(this){
+      this.listener = listener;
+      for(int i = 0; i < cameras.length; i++){
+        pending[i] = new Pending(max_pending, 1000000000L / Math.max(cameras[i].getFramerate(), 1));
+      }
+      decided_time = Long.MIN_VALUE;
+    }
+    for(int i = 0; i < cameras.length; i++){
+      PS3Eye camera = cameras[i];
+      camera.setQueueDepth(Math.max(camera.getQueueDepth(), 2 + max_pending));
+      camera.setFrameListener(new CameraListener(i));
+    }
+  }
+  
+  /**
+   * Stops delivering frame sets and releases all waiting frames.
+   */
+  public void stop(){
+    for(PS3Eye camera : cameras){
+      camera.setFrameListener(null);
+    }
+    synchronized(this){
+      for(int i = 0; i < cameras.length; i++){
+        Pending p = pending[i];
+        while(p != null && p.size > 0){
+          p.poll().release();
+        }
+      }
+      Frame[] frames;
+      while((frames = ready.poll()) != null){
+        release(frames);
+      }
+      listener = null;
+    }
+  }
+  
+  
+  
+  private class CameraListener implements FrameListener {
+    private final int camera;
+    
+    CameraListener(int camera){
+      this.camera = camera;
+    }
+    
+    @Override
+    public void frameReceived(Frame frame) {
+      add(camera, frame);
+    }
+  }
+  
+  
+  private void add(int camera, Frame frame){
+    synchronized(this){
+      if(listener == null){
+        return;
+      }
+      
+      Pending p = pending[camera];
+      long time = captureTime(p, frame.getFrameInfo());
+      
+      // sets that timed out are decided first, which may make room
+      match();
+      
+      // too late if a set with a newer frame was decided without it
+      if(time < decided_time){
+        frames_dropped++;
+      } else {
+        if(p.size == p.frames.length){
+          p.poll().release();
+          frames_dropped++;
+        }
+        p.add(frame.retain(), time);
+        match();
+      }
+      
+      if(delivering || ready.isEmpty()){
+        return;
+      }
+      delivering = true;
+    }
+    deliver();
+  }
+  
+  
+  // hands the matched sets to the listener, without holding the lock, until
+  // none is left. Only one thread delivers at a time, in order.
+  private void deliver(){
+    for(;;){
+      Frame[] frames;
+      Listener listener;
+      synchronized(this){
+        frames   = ready.poll();
+        listener = this.listener;
+        if(frames == null){
+          delivering = false;
+          return;
+        }
+        sets_delivered++;
+      }
+      try {
+        listener.framesReceived(frames);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      } finally {
+        release(frames);
+      }
+    }
+  }
+  
+  static private void release(Frame[] frames){
+    for(Frame frame : frames){
+      if(frame != null){
+        frame.release();
+      }
+    }
+  }
+  
+  
+  // capture time of a frame, in host nanoseconds
+  private long captureTime(Pending p, FrameInfo info){
+    long arrival = info.getTimestamp();
+    if(pts_clock <= 0){
+      return arrival;
+    }
+    
+    // unwrap the 32 bit PTS
+    long pts = info.getPTS() & 0xFFFFFFFFL;
+    if(p.pts_count++ == 0){
+      p.pts_unwrapped = 0;
+    } else {
+      p.pts_unwrapped += (pts - p.pts_last) & 0xFFFFFFFFL;
+    }
+    p.pts_last = pts;
+    long pts_time = (long) (p.pts_unwrapped * 1E09 / pts_clock);
+    
+    // the smallest arrival delay is the best estimate of the clock offset.
+    // The leak lets the offset follow a drift between both clocks.
+    long offset = arrival - pts_time;
+    if(p.pts_count == 1 || offset < p.pts_offset + PTS_OFFSET_LEAK){
+      p.pts_offset = offset;
+    } else {
+      p.pts_offset += PTS_OFFSET_LEAK;
+    }
+    return pts_time + p.pts_offset;
+  }
+  
+  
+  // queues or drops the sets that can be decided with the waiting frames
+  private void match(){
+    int num = cameras.length;
+    long now = System.nanoTime();
+    for(;;){
+      // reference: oldest waiting frame
+      int  ref  = -1;
+      long time = Long.MAX_VALUE;
+      for(int i = 0; i < num; i++){
+        if(pending[i].size > 0 && pending[i].time() < time){
+          time = pending[i].time();
+          ref  = i;
+        }
+      }
+      if(ref == -1){
+        return;
+      }
+      
+      boolean complete = true;
+      boolean decided  = true;
+      for(int i = 0; i < num; i++){
+        Pending p = pending[i];
+        if(p.size > 0 && p.time() - time <= tolerance){
+          set[i] = p.frames[p.head];
+        } else {
+          set[i] = null;
+          complete = false;
+          // a match can still arrive, unless the camera is past the window,
+          // or had no frame for it in time
+          boolean past = p.last_time != Long.MIN_VALUE && p.last_time - time > tolerance;
+          if(!past && now - time <= tolerance + pending[ref].interval){
+            decided = false;
+          }
+        }
+      }
+      
+      if(!complete && !decided){
+        return;
+      }
+      decided_time = time;
+      
+      if(!complete && policy == Policy.COMPLETE){
+        pending[ref].poll().release();
+        frames_dropped++;
+        continue;
+      }
+      
+      // the frames are released after delivery
+      ready.add(set.clone());
+      for(int i = 0; i < num; i++){
+        if(set[i] != null){
+          pending[i].poll();
+          set[i] = null;
+        }
+      }
+    }
+  }
+  
+  
+  // frames of a camera, waiting for a match, oldest first
+  static private class Pending {
+    final Frame[] frames;
+    final long[]  times;
+    long interval; // frame interval, nanoseconds, averaged
+    int head = 0;
+    int size = 0;
+    long last_time = Long.MIN_VALUE; // capture time of the newest frame
+    
+    // PTS to host time mapping
+    long pts_count;
+    long pts_last;
+    long pts_unwrapped;
+    long pts_offset;
+    
+    Pending(int capacity, long interval){
+      this.frames   = new Frame[capacity];
+      this.times    = new long [capacity];
+      this.interval = interval;
+    }
+    
+    long time(){
+      return times[head];
+    }
+    
+    void add(Frame frame, long time){
+      int idx = (head + size++) % frames.length;
+      frames[idx] = frame;
+      times [idx] = time;
+      if(last_time != Long.MIN_VALUE && time > last_time){
+        interval += (time - last_time - interval) / 8;
+      }
+      last_time = time;
+    }
+    
+    Frame poll(){
+      Frame frame = frames[head];
+      frames[head] = null;
+      head = (head + 1) % frames.length;
+      size--;
+      return frame;
+    }
+  }
+
+}
@@ -0,0 +1,412 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.usb4java.ConfigDescriptor;
+import org.usb4java.Device;
+import org.usb4java.DeviceHandle;
+import org.usb4java.EndpointDescriptor;
+import org.usb4java.Interface;
+import org.usb4java.InterfaceDescriptor;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+/**
+ * 
+ * Bulk transfers from the PS3Eye's video endpoint, via libusb.<br>
+ * Completed transfers are handed to URBDesc.pkt_scan() and resubmitted, 
+ * either directly on the USB-thread, or on a worker executor. The USB-thread
+ * then only queues the transfer, the worker parses the queued transfers in 
+ * completion order, one at a time, so many cameras can be parsed in 
+ * parallel by one shared USB-thread.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class LibUsbTransport implements Transport {
+
+  // bulk payload size, transfer sizes are a multiple of it
+  static final public int PAYLOAD_SIZE = 2048;
+  
+  // defaults, if the stream's data rate is unknown
+  static final public int TRANSFER_SIZE = 65536;
+  static final public int NUM_TRANSFERS = 5;
+  
+  // automatic sizing: one transfer holds about TRANSFER_DURATION of the 
+  // stream, all transfers in flight at least IN_FLIGHT_DURATION.
+  static final private int TRANSFER_DURATION_US  =  2000;
+  static final private int IN_FLIGHT_DURATION_US = 16000;
+  static final private int MIN_TRANSFER_SIZE     = PAYLOAD_SIZE *  8;
+  static final private int MAX_TRANSFER_SIZE     = PAYLOAD_SIZE * 64;
+  static final private int MAX_NUM_TRANSFERS     = 32;
+
+  private final int transfer_size;
+  private final int num_transfers;
+  
+  private int num_active_transfers = 0;
+  private boolean transfers_started = false;
+  private volatile boolean stopping = false;
+  private Transfer[] xfr; // NULL
+  
+  // null, or the executor that parses and resubmits completed transfers
+  private final Executor worker;
+  
+  // completed transfers and their completion time, queued by the USB-thread
+  // for the worker. At most num_transfers are queued, so the ring never 
+  // overflows.
+  private final Transfer[]    completed;
+  private final long[]        completed_time;
+  private int                 completed_tail = 0; // USB-thread
+  private int                 completed_head = 0; // worker
+  private final AtomicInteger completed_count = new AtomicInteger(0);
+  private final Runnable      worker_task = new Runnable() {
+    public void run() {
+      process_completed();
+    }
+  };
+  
+  private DeviceHandle handle;
+  private URBDesc urb;
+  
+  public LibUsbTransport(DeviceHandle handle) {
+    this(handle, TRANSFER_SIZE, NUM_TRANSFERS);
+  }
+  
+  /**
+   * @param handle
+   * @param transfer_size bytes per transfer, a multiple of PAYLOAD_SIZE
+   * @param num_transfers transfers in flight
+   */
+  public LibUsbTransport(DeviceHandle handle, int transfer_size, int num_transfers) {
+    this(handle, transfer_size, num_transfers, null);
+  }
+  
+  /**
+   * @param handle
+   * @param transfer_size bytes per transfer, a multiple of PAYLOAD_SIZE
+   * @param num_transfers transfers in flight
+   * @param worker        executor to parse the transfers on, null to parse
+   *                      them on the USB-thread
+   */
+  public LibUsbTransport(DeviceHandle handle, int transfer_size, int num_transfers, Executor worker) {
+    if(transfer_size <= 0 || transfer_size % PAYLOAD_SIZE != 0){
+      throw new IllegalArgumentException("transfer_size must be a multiple of " + PAYLOAD_SIZE + ": " + transfer_size);
+    }
+    if(num_transfers < 1){
+      throw new IllegalArgumentException("num_transfers must be at least 1: " + num_transfers);
+    }
+    this.handle = handle;
+    this.transfer_size = transfer_size;
+    this.num_transfers = num_transfers;
+    this.xfr = new Transfer[num_transfers];
+    this.worker = worker;
+    this.completed = new Transfer[num_transfers];
+    this.completed_time = new long[num_transfers];
+  }
+  
+  
+  // bytes per second on the bus, payload headers included
+  static private long bytesPerSecond(int frame_size, int framerate){
+    int payload_data = PAYLOAD_SIZE - 12;
+    int num_payloads = (frame_size + payload_data - 1) / payload_data;
+    return (long) (frame_size + num_payloads * 12) * Math.max(framerate, 1);
+  }
+  
+  /**
+   * Transfer size for a stream, so that a transfer completes about every 
+   * TRANSFER_DURATION_US. Smaller transfers hand data to the parser sooner, 
+   * larger ones cause fewer callbacks.
+   * 
+   * @param frame_size number of pixels
+   * @param framerate  frames per second
+   * @return bytes, a multiple of PAYLOAD_SIZE
+   */
+  static public int autoTransferSize(int frame_size, int framerate){
+    long bytes = bytesPerSecond(frame_size, framerate) * TRANSFER_DURATION_US / 1000000L;
+    long size  = (bytes + PAYLOAD_SIZE - 1) / PAYLOAD_SIZE * PAYLOAD_SIZE;
+    return (int) Math.max(MIN_TRANSFER_SIZE, Math.min(MAX_TRANSFER_SIZE, size));
+  }
+  
+  /**
+   * Number of transfers for a stream, so that the transfers in flight cover
+   * IN_FLIGHT_DURATION_US. This is how long the USB-thread may be delayed 
+   * without the camera running out of buffers.
+   * 
+   * @param frame_size    number of pixels
+   * @param framerate     frames per second
+   * @param transfer_size bytes per transfer
+   * @return number of transfers
+   */
+  static public int autoNumTransfers(int frame_size, int framerate, int transfer_size){
+    long bytes = bytesPerSecond(frame_size, framerate) * IN_FLIGHT_DURATION_US / 1000000L;
+    long num   = (bytes + transfer_size - 1) / transfer_size;
+    return (int) Math.max(2, Math.min(MAX_NUM_TRANSFERS, num));
+  }
+  
+  public int getTransferSize(){
+    return transfer_size;
+  }
+  
+  public int getNumTransfers(){
+    return num_transfers;
+  }
+
+  //
+  // look for an input transfer endpoint in an alternate setting
+  // libusb_endpoint_descriptor
+  //
+  static protected byte find_ep(Device device) {
+
+    byte ep_addr = 0;
+
+    ConfigDescriptor config = new ConfigDescriptor();
+    int rval = LibUsb.getActiveConfigDescriptor(device, config);
+    if (rval != 0) {
+      throw new LibUsbException("error LibUsb.getActiveConfigDescriptor", rval);
+    }
+
+    InterfaceDescriptor altsetting = null;
+
+    for (int i = 0; i < config.bNumInterfaces(); i++) {
+      Interface[] iface = config.iface();
+      altsetting = iface[i].altsetting()[0];
+      if (altsetting.bInterfaceNumber() == 0) {
+        break;
+      }
+    }
+
+    EndpointDescriptor ep;
+    for (int i = 0; i < altsetting.bNumEndpoints(); i++) {
+      ep = altsetting.endpoint()[i];
+      if ((ep.bmAttributes() & LibUsb.TRANSFER_TYPE_MASK) == LibUsb.TRANSFER_TYPE_BULK && ep.wMaxPacketSize() != 0) {
+        ep_addr = ep.bEndpointAddress();
+        break;
+      }
+    }
+    LibUsb.freeConfigDescriptor(config);
+
+    return ep_addr;
+  }
+
+
+  // Runs on the USB-thread, which serves all cameras. Nothing in here may wait
+  // for the consumer or for other transfers.
+  private TransferCallback transfer_completed_callback = new TransferCallback() {
+    @Override
+    public void processTransfer(Transfer xfr) {
+      long time = System.nanoTime();
+      TranferUserData userdata = (TranferUserData) xfr.userData();
+      LibUsbTransport transport = userdata.parent;
+      
+      int status = xfr.status();
+      if (status != LibUsb.TRANSFER_COMPLETED) {
+        if (status != LibUsb.TRANSFER_CANCELLED) {
+          transport.cancel_transfers();
+        }
+        transport.transfer_finished(xfr);
+        return;
+      } 
+      
+      if (transport.worker == null) {
+        transport.process(xfr, time);
+      } else {
+        transport.queue_completed(xfr, time);
+      }
+    }
+  };
+  
+  
+  // USB-thread: hands a completed transfer to the worker. A worker task is 
+  // only scheduled if none is active, so transfers are parsed serially.
+  private void queue_completed(Transfer transfer, long time) {
+    completed     [completed_tail] = transfer;
+    completed_time[completed_tail] = time;
+    completed_tail = (completed_tail + 1) % completed.length;
+    
+    if (completed_count.getAndIncrement() == 0) {
+      try {
+        worker.execute(worker_task);
+      } catch (RejectedExecutionException e) {
+        // worker is gone, parse here
+        process_completed();
+      }
+    }
+  }
+  
+  
+  // worker: parses all queued transfers, oldest first
+  private void process_completed() {
+    int count = completed_count.get();
+    do {
+      for (int i = 0; i < count; i++) {
+        Transfer transfer = completed     [completed_head];
+        long     time     = completed_time[completed_head];
+        completed[completed_head] = null;
+        completed_head = (completed_head + 1) % completed.length;
+        process(transfer, time);
+      }
+    } while ((count = completed_count.addAndGet(-count)) != 0);
+  }
+  
+  
+  // parses a completed transfer and resubmits it
+  private void process(Transfer transfer, long time) {
+    urb.pkt_scan(transfer.buffer(), transfer.actualLength(), time);
+    
+    // checked and resubmitted under the lock, so stop() can't cancel in 
+    // between and miss this transfer
+    synchronized(this) {
+      if (stopping) {
+        transfer_finished(transfer);
+        return;
+      }
+  
+      if (LibUsb.submitTransfer(transfer) != 0) {
+        System.out.printf("error re-submitting URB\n");
+        cancel_transfers();
+        transfer_finished(transfer);
+      }
+    }
+  }
+
+
+  // Cancels all transfers and waits until the USB-thread has returned them.
+  // Must not be called from the USB-thread.
+  @Override
+  public void stop() {
+ 
+    synchronized(this) {
+      try {
+  
+        if (!transfers_started){
+          return;
+        }
+        
+        // transfers that are being parsed right now are not resubmitted
+        stopping = true;
+        cancel_transfers();
+
+        while(num_active_transfers != 0){
+          this.wait();
+        }
+        
+        transfers_started = false;
+   
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+    }
+    
+    PS3Eye.usb.cameraStopped();
+  }
+  
+  
+  // Requests cancellation of all pending transfers, without waiting for it.
+  // The cancelled transfers are returned to the callback by the USB-thread.
+  private void cancel_transfers() {
+    synchronized(this) {
+      for (int index = 0; index < num_transfers; ++index) {
+        if(xfr[index] != null){
+          int rval = LibUsb.cancelTransfer(xfr[index]);
+          if(rval != 0 && rval != LibUsb.ERROR_NOT_FOUND){
+            System.out.println("error cancel_transfers");
+          }
+        }
+      }
+    }
+  }
+  
+  
+  // A transfer that is not going to be resubmitted.
+  private void transfer_finished(Transfer transfer) {
+    synchronized(this) 
+    {
+      TranferUserData userdata = (TranferUserData) transfer.userData();
+      xfr[userdata.idx] = null;
+      LibUsb.freeTransfer(transfer);
+      --num_active_transfers;
+      this.notify();
+    }
+  }
+  
+  
+  static class TranferUserData{
+    LibUsbTransport parent;
+    int idx;
+    int flag = 0;
+    TranferUserData(LibUsbTransport parent, int idx){
+      this.parent = parent;
+      this.idx = idx;
+    }
+  }
+  
+  
+  @Override
+  public boolean start(URBDesc urb) {
+    this.urb = urb;
+    this.stopping = false;
+    
+    // Find the bulk transfer endpoint
+    byte bulk_endpoint = find_ep(LibUsb.getDevice(handle));
+    LibUsb.clearHalt(handle, bulk_endpoint);
+
+    int res = 0;
+    synchronized(this) {
+      for (int index = 0; index < num_transfers; ++index) {
+        // Create & submit the transfer
+        TranferUserData user_data = new TranferUserData(this, index);
+        xfr[index] = LibUsb.allocTransfer(0);
+        
+        // Java GC takes care of memory freeing
+        ByteBuffer transfer_buffer = ByteBuffer.allocateDirect(transfer_size);
+        
+        LibUsb.fillBulkTransfer(xfr[index], handle, bulk_endpoint, transfer_buffer, transfer_completed_callback, user_data, 0);
+        int rval = LibUsb.submitTransfer(xfr[index]);
+        if(rval != 0){
+          // never reaches the callback
+          LibUsb.freeTransfer(xfr[index]);
+          xfr[index] = null;
+        } else {
+          num_active_transfers++;
+        }
+        res |= rval;
+      }
+      
+      transfers_started = true;
+    }
+
+    PS3Eye.usb.cameraStarted();
+
+    return res == 0;
+  }
+
+}
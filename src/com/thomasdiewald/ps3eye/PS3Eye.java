@@ -24,7 +24,15 @@
 
 package com.thomasdiewald.ps3eye;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.usb4java.Device;
 import org.usb4java.DeviceHandle;
@@ -205,17 +213,44 @@ public class PS3Eye {
 
 
   static public enum Format{
-    Bayer(1), // Output in Bayer. Destination buffer must be width * height bytes
-    BGR  (3), // Output in BGR. Destination buffer must be width * height * 3 bytes
-    RGB  (3); // Output in RGB. Destination buffer must be width * height * 3 bytes
+    Bayer( 8), // Output in Bayer. Destination buffer must be width * height bytes
+    BGR  (24), // Output in BGR. Destination buffer must be width * height * 3 bytes
+    RGB  (24), // Output in RGB. Destination buffer must be width * height * 3 bytes
+    Gray ( 8), // Output in 8 bit luma (BT.601). Destination buffer must be width * height bytes
+    I420 (12), // Output in planar YUV 4:2:0 (Y, U, V planes). Destination buffer must be width * height * 3 / 2 bytes
+    NV12 (12); // Output in semi-planar YUV 4:2:0 (Y, UV planes). Destination buffer must be width * height * 3 / 2 bytes
     
+    public final int bits_per_pixel;
+    
+    /**
+     * @deprecated 0 for the YUV 4:2:0 formats, which have no whole number of
+     * bytes per pixel. Use getFrameSize() or bits_per_pixel.
+     */
+    @Deprecated
     public final int bytes_per_pixel;
     
-    private Format(int bytes_per_pixel){
-      this.bytes_per_pixel = bytes_per_pixel;
+    private Format(int bits_per_pixel){
+      this.bits_per_pixel  = bits_per_pixel;
+      this.bytes_per_pixel = (bits_per_pixel & 7) == 0 ? bits_per_pixel / 8 : 0;
+    }
+    
+    /**
+     * @return the size in bytes of a width x height frame in this format
+     */
+    public int getFrameSize(int width, int height){
+      return width * height * bits_per_pixel / 8;
     }
   };
   
+  /**
+   * Where completed USB transfers are parsed into frames.
+   */
+  static public enum EventMode{
+    INLINE    , // on the USB-thread, shared by all cameras
+    PER_DEVICE, // on a worker thread of the camera
+    POOLED    , // on a worker pool, shared by all cameras, one thread per core
+  }
+  
   static public enum Resolution{
     VGA (640,480),
     QVGA(320,240);
@@ -240,11 +275,42 @@ public class PS3Eye {
   protected Device       usb_device;
   protected DeviceHandle usb_device_handle;
   
+  // control transfers: reusable buffer for single register access, and a 
+  // batch for register tables. "ps3eye.batch=false" disables batching.
+  static final private boolean CONTROL_BATCH = Boolean.parseBoolean(System.getProperty("ps3eye.batch", "true"));
+  private final ByteBuffer control_buffer = ByteBuffer.allocateDirect(1);
+  private ControlBatch control_batch;
+  
+  // shadow copies of the bridge and sensor registers.
+  // volatile bridge registers: sensor address, SCCB interface, stream 
+  // control, reset and the 0x1c/0x1d FIFO ports.
+  // volatile sensor registers: COM7 (reset) and 0xff. Gain (0x00), blue,
+  // red (0x01, 0x02) and exposure (0x08, 0x10) are only volatile while the
+  // automatic gain, white balance or exposure control drives them.
+  private final RegisterShadow bridge_shadow = new RegisterShadow(
+      0x1c, 0x1d, 0xe0, 0xe7, 
+      OV534_REG_ADDRESS, OV534_REG_SUBADDR, OV534_REG_WRITE, OV534_REG_READ, OV534_REG_OPERATION, OV534_REG_STATUS);
+  private final RegisterShadow sensor_shadow = new RegisterShadow(0x12, 0xff);
+  
+  // replay of a recorded stream, instead of a device
+  protected ReplayTransport replay;
+  
   // frame
   protected int framerate = 60;
   protected PS3Eye.Format format = PS3Eye.Format.RGB; // RGB, BRG, BAYER
   protected PS3Eye.Resolution resolution = PS3Eye.Resolution.VGA; // VGA, QVGA
   
+  // frame queue
+  protected int queue_depth = 0; // 0 = default depth of the queue policy
+  protected FrameQueue.Policy queue_policy = FrameQueue.Policy.OVERWRITE_NEWEST;
+  protected boolean off_heap = false;
+  
+  // usb transfers, 0 = derived from resolution and framerate
+  protected int transfer_size = 0;
+  protected int num_transfers = 0;
+  protected EventMode event_mode = EventMode.INLINE;
+  protected ExecutorService device_worker;
+  
   // controls
   protected int     gain       =  20; // gain        20 [0,  63]
   protected int     exposure   = 120; // exposure   120 [0, 255]
@@ -262,8 +328,14 @@ public class PS3Eye {
  
   protected boolean is_streaming = false;
   
+  // true after init() reset and initialized bridge and sensor
+  protected boolean is_initialized = false;
+  
   protected URBDesc urb = new URBDesc();
   
+  // default executor of the FrameListener
+  protected ExecutorService listener_executor;
+  
 
   private static PS3Eye[] PS3EYE_LIST = null;
   
@@ -339,6 +411,41 @@ public class PS3Eye {
     this.device_idx = device_idx;
   }
   
+  
+  /**
+   * returns a PS3Eye that replays a stream recorded with startRecording().
+   * No device is needed, all camera settings are ignored and the resolution
+   * is the recorded one.
+   * 
+   * @param file     recording
+   * @param realtime true: original frame timing, false: as fast as possible
+   * @param loop     true: start over at the end of the recording
+   * @return
+   * @throws IOException
+   */
+  public static PS3Eye openReplay(File file, boolean realtime, boolean loop) throws IOException {
+    ReplayTransport replay = new ReplayTransport(file, realtime, loop);
+    
+    PS3Eye.Resolution resolution = null;
+    for(PS3Eye.Resolution r : PS3Eye.Resolution.values()){
+      if(r.num_pixels == replay.getFrameSize()){
+        resolution = r;
+      }
+    }
+    if(resolution == null){
+      throw new IOException("unknown frame size in recording: " + replay.getFrameSize());
+    }
+    
+    PS3Eye ps3eye = new PS3Eye(null, -1);
+    ps3eye.replay = replay;
+    ps3eye.resolution = resolution;
+    return ps3eye;
+  }
+  
+  public boolean isReplay(){
+    return replay != null;
+  }
+  
   // call on exit
   public void dispose(){
 //    System.out.println("dispose");
@@ -367,7 +474,9 @@ public class PS3Eye {
     openUSB();
     
     this.format     = format;
-    this.resolution = resolution;
+    if(replay == null){
+      this.resolution = resolution;
+    }
     this.framerate  = ov534_set_frame_rate(framerate, true);
 
 
@@ -402,6 +511,7 @@ public class PS3Eye {
     ov534_reg_write(0xe0, 0x09);
     ov534_set_led(0);
     
+    is_initialized = true;
     
     if(push_is_streaming){
       start();
@@ -409,13 +519,53 @@ public class PS3Eye {
   }
   
   
+  /**
+   * Switches framerate, resolution and format of an initialized device,
+   * without the reset and the full register initialization of init().<br>
+   * Only the delta is applied: a new resolution restarts the stream, which
+   * writes the resolution's start tables and the rate registers. A new 
+   * framerate only writes the rate registers. This takes milliseconds 
+   * instead of a full init().<br>
+   * If the device was not initialized yet, this calls init().
+   * 
+   * @param framerate
+   * @param resolution
+   * @param format
+   */
+  public void reconfigure(int framerate, PS3Eye.Resolution resolution, PS3Eye.Format format){
+    if(!is_initialized && replay == null){
+      init(framerate, resolution, format);
+      return;
+    }
+    
+    this.format = format;
+    
+    if(this.resolution != resolution && replay == null){
+      boolean push_is_streaming = isStreaming();
+      if(push_is_streaming){
+        stop();
+      }
+      
+      // start() writes the start tables and the rate registers
+      this.resolution = resolution;
+      this.framerate  = ov534_set_frame_rate(framerate, true);
+      
+      if(push_is_streaming){
+        start();
+      }
+    } else if(ov534_set_frame_rate(framerate, true) != this.framerate){
+      this.framerate = ov534_set_frame_rate(framerate, !isStreaming());
+    }
+  }
+  
+  
 
   
   
   public void start(){
     if(is_streaming) return;
     
-    if(usb_device_handle == null){
+    if(usb_device_handle == null && replay == null){
       init();
     }
     
@@ -452,7 +602,33 @@ public class PS3Eye {
     ov534_reg_write(0xe0, 0x00); // start stream
   
     // init and start urb
-    urb.start_transfers(usb_device_handle, resolution.num_pixels);
+    urb.frame_queue.setPolicy(queue_policy);
+    urb.frame_queue.frame_width  = resolution.w;
+    urb.frame_queue.frame_height = resolution.h;
+    if(replay != null){
+      urb.start_transfers(replay, resolution.num_pixels, getQueueDepth());
+    } else {
+      Executor worker = null;
+      switch(event_mode){
+        case PER_DEVICE:
+          device_worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "PS3EyeDriver Worker Thread " + device_idx);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+          worker = device_worker;
+          break;
+        case POOLED:
+          worker = usb.getWorkerPool();
+          break;
+        default:
+          break;
+      }
+      LibUsbTransport transport = new LibUsbTransport(usb_device_handle, getTransferSize(), getNumTransfers(), worker);
+      urb.start_transfers(transport, resolution.num_pixels, getQueueDepth());
+    }
     is_streaming = true;
   }
   
@@ -469,6 +645,14 @@ public class PS3Eye {
       
     // close urb
     urb.close_transfers();
+    
+    // wake up the threads waiting in getFrame()
+    urb.frame_queue.close();
+    
+    if(device_worker != null){
+      device_worker.shutdown();
+      device_worker = null;
+    }
   }
   
   
@@ -481,12 +665,58 @@ public class PS3Eye {
   
   public void release(){
     stop();
+    try {
+      stopRecording();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
     closeUSB();
+    
+    if(listener_executor != null){
+      listener_executor.shutdown();
+      listener_executor = null;
+    }
+  }
+  
+  
+  /**
+   * Writes the raw stream to a file, until stopRecording() is called. 
+   * The recording can be played back with openReplay().
+   * A recording that is still active is stopped first.
+   * 
+   * @param file
+   * @throws IOException
+   */
+  public void startRecording(File file) throws IOException {
+    stopRecording();
+    urb.start_recording(new TransferRecorder(file, resolution.num_pixels));
+  }
+  
+  /**
+   * Stops the recording and closes its file.
+   * 
+   * @throws IOException if writing the file failed, the recording stopped 
+   *         at that point, see isRecording()
+   */
+  public void stopRecording() throws IOException {
+    urb.stop_recording();
+  }
+  
+  /**
+   * @return true, if a recording was started and writing its file didn't fail
+   */
+  public boolean isRecording(){
+    TransferRecorder recorder = urb.recorder;
+    return recorder != null && recorder.getFailure() == null;
   }
   
   
   
   private void openUSB(){
+    if(replay != null){
+      return;
+    }
+    
     if(usb_device_handle == null){
       usb_device_handle = new DeviceHandle(); 
       int rval = LibUsb.open(usb_device, usb_device_handle);
@@ -500,10 +730,26 @@ public class PS3Eye {
       if (rval != LibUsb.SUCCESS){
         throw new LibUsbException("error LibUsb.claimInterface", rval);
       } 
+      
+      if(CONTROL_BATCH && control_batch == null){
+        control_batch = new ControlBatch(usb_device_handle, usb.context);
+      }
+      
+      // state of a device that was opened is unknown
+      bridge_shadow.invalidate();
+      sensor_shadow.invalidate();
+      sensor_auto(0xFF);
     }
   }
   
   private void closeUSB(){
+    is_initialized = false;
+    
+    if(control_batch != null){
+      control_batch.release();
+      control_batch = null;
+    }
+    
     if(usb_device_handle != null){
       LibUsb.releaseInterface(usb_device_handle, 0);
       LibUsb.close(usb_device_handle);
@@ -657,8 +903,13 @@ public class PS3Eye {
 
  
  
-  private void ov534_reg_write(int reg, int val){
-    ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+  synchronized private void ov534_reg_write(int reg, int val){
+    if(replay != null || bridge_shadow.contains(reg, val)){
+      return;
+    }
+    
+    ByteBuffer buffer = control_buffer;
+    buffer.clear();
     buffer.put(0, (byte) (val & 0xFF));
  
     int transfered = LibUsb.controlTransfer(usb_device_handle, 
@@ -668,11 +919,23 @@ public class PS3Eye {
     if (transfered < 0){
       throw new LibUsbException("error ov534_reg_write, LibUsb.controlTransfer", transfered);
     }
+    
+    bridge_written(reg, val);
   }
   
   
-  private int ov534_reg_read(int reg){
-    ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+  synchronized private int ov534_reg_read(int reg){
+    if(replay != null){
+      return 0;
+    }
+    
+    int cached = bridge_shadow.get(reg);
+    if(cached != -1){
+      return cached;
+    }
+    
+    ByteBuffer buffer = control_buffer;
+    buffer.clear();
 
     int transfered = LibUsb.controlTransfer(usb_device_handle,
         (byte) (LibUsb.ENDPOINT_IN | LibUsb.REQUEST_TYPE_VENDOR| LibUsb.RECIPIENT_DEVICE), 
@@ -683,7 +946,9 @@ public class PS3Eye {
       throw new LibUsbException("error ov534_reg_read, LibUsb.controlTransfer", transfered);
     }
     
-    return buffer.get() & 0xFF;
+    int val = buffer.get(0) & 0xFF;
+    bridge_shadow.set(reg, val);
+    return val;
   }
   
   
@@ -700,17 +965,91 @@ public class PS3Eye {
     return true;
   }
   
-  private void sccb_reg_write(int reg, int val){
+  // updates the shadows after a bridge register write
+  private void bridge_written(int reg, int val){
+    if(reg == 0xe7){
+      bridge_shadow.invalidate(); // reset bridge
+    } else {
+      bridge_shadow.set(reg, val);
+    }
+  }
+  
+  // updates the shadow after a sensor register write
+  private void sensor_written(int reg, int val, boolean success){
+    if(reg == 0x12 && (val & 0x80) != 0){
+      sensor_shadow.invalidate(); // reset sensor
+      sensor_auto(0xFF);
+    } else if(success){
+      sensor_shadow.set(reg, val);
+      if(reg == 0x13) sensor_auto(val);
+    } else {
+      sensor_shadow.invalidate(reg);
+      if(reg == 0x13) sensor_auto(0xFF);
+    }
+  }
+  
+  // the registers driven by AGC, AWB and AEC are volatile while the control 
+  // is on, as given by COM8 (0x13). Toggling a control forgets their values.
+  private void sensor_auto(int com8){
+    sensor_shadow.setVolatile((com8 & 0x04) != 0, 0x00);       // AGC, gain
+    sensor_shadow.setVolatile((com8 & 0x02) != 0, 0x01, 0x02); // AWB, blue, red
+    sensor_shadow.setVolatile((com8 & 0x01) != 0, 0x08, 0x10); // AEC, exposure
+  }
+  
+  synchronized private void sccb_reg_write(int reg, int val){
+    if(replay != null || sensor_shadow.contains(reg, val)){
+      return;
+    }
+    
     ov534_reg_write(OV534_REG_SUBADDR  , reg);
     ov534_reg_write(OV534_REG_WRITE    , val);
     ov534_reg_write(OV534_REG_OPERATION, OV534_OP_WRITE_3);
 
-    if (!sccb_check_status()) {
+    boolean success = sccb_check_status();
+    if (!success) {
       System.out.println("sccb_reg_write failed\n");
     }
+    sensor_written(reg, val, success);
   }
   
-  private int sccb_reg_read(int reg){
+  // sccb_reg_write() in one batch: the three bridge writes and the first 
+  // status read. The status is only polled again if the sensor is busy.
+  synchronized private void sccb_reg_write_batched(int reg, int val){
+    ControlBatch batch = control_batch;
+    if(batch == null || replay != null){
+      sccb_reg_write(reg, val);
+      return;
+    }
+    if(sensor_shadow.contains(reg, val)){
+      return;
+    }
+    
+    // the batch bypasses ov534_reg_write, but the SCCB interface registers 
+    // are volatile, so the bridge shadow needs no update
+    batch.write(OV534_REG_SUBADDR  , reg);
+    batch.write(OV534_REG_WRITE    , val);
+    batch.write(OV534_REG_OPERATION, OV534_OP_WRITE_3);
+    int idx = batch.read(OV534_REG_STATUS);
+    batch.flush();
+    int status = batch.get(idx);
+    
+    boolean success = status == 0x00 || (status != 0x04 && sccb_check_status());
+    if (!success) {
+      System.out.println("sccb_reg_write failed\n");
+    }
+    sensor_written(reg, val, success);
+  }
+  
+  synchronized private int sccb_reg_read(int reg){
+    if(replay != null){
+      return 0;
+    }
+    
+    int cached = sensor_shadow.get(reg);
+    if(cached != -1){
+      return cached;
+    }
+    
     ov534_reg_write(OV534_REG_SUBADDR, reg);
     ov534_reg_write(OV534_REG_OPERATION, OV534_OP_WRITE_2);
     if (!sccb_check_status()) {
@@ -722,13 +1061,37 @@ public class PS3Eye {
       System.out.println("sccb_reg_read failed 2\n");
     }
 
-    return ov534_reg_read(OV534_REG_READ);
+    int val = ov534_reg_read(OV534_REG_READ);
+    sensor_shadow.set(reg, val);
+    return val;
   }
   
   // output a bridge sequence (reg - val)
   private void reg_w_array(int[][] data){
-    for(int i = 0; i < data.length; i++){
-      ov534_reg_write(data[i][0], data[i][1]);
+    ControlBatch batch = control_batch;
+    if(batch == null || replay != null){
+      for(int i = 0; i < data.length; i++){
+        ov534_reg_write(data[i][0], data[i][1]);
+      }
+      return;
+    }
+    
+    // the shadow is updated while queueing, so later entries of the table 
+    // are compared against the earlier ones
+    synchronized(this){
+      try {
+        for(int i = 0; i < data.length; i++){
+          int reg = data[i][0], val = data[i][1];
+          if(!bridge_shadow.contains(reg, val)){
+            batch.write(reg, val);
+            bridge_written(reg, val);
+          }
+        }
+        batch.flush();
+      } catch (LibUsbException e) {
+        bridge_shadow.invalidate();
+        throw e;
+      }
     }
   }
  
@@ -737,7 +1100,7 @@ public class PS3Eye {
     for(int i = 0; i < data.length; i++){
       int[] datai = data[i];
       if (datai[0] != 0xff) {
-        sccb_reg_write(datai[0], datai[1]);
+        sccb_reg_write_batched(datai[0], datai[1]);
       } else {
         sccb_reg_read(datai[1]);
         sccb_reg_write(0xff, 0x00);
@@ -794,6 +1157,9 @@ public class PS3Eye {
     } else {
       sccb_reg_write(0x63, 0xAA); // AWB OFF
     }
+    // blue and red gain may have been changed by the AWB
+    sensor_shadow.invalidate(0x01);
+    sensor_shadow.invalidate(0x02);
   }
 
   public int getGain() {
@@ -938,6 +1304,251 @@ public class PS3Eye {
     return resolution;
   }
   
+  public int getQueueDepth(){
+    if(queue_depth != 0){
+      return queue_depth;
+    }
+    return queue_policy.default_depth;
+  }
+  
+  /**
+   * Number of frames in the frame queue, minimum is 2.
+   * One frame is always being written by the USB-thread, the others hold 
+   * completed frames until they are read by getFrame().<br>
+   * 0 (default) uses the default depth of the queue policy, see 
+   * FrameQueue.Policy.<br>
+   * If the camera is streaming, it is restarted to apply the new depth.
+   * 
+   * @param num_frames
+   */
+  public void setQueueDepth(int num_frames){
+    num_frames = num_frames <= 0 ? 0 : Math.max(num_frames, 2);
+    if(queue_depth == num_frames){
+      return;
+    }
+    
+    int depth = getQueueDepth();
+    queue_depth = num_frames;
+    
+    if(depth != getQueueDepth() && isStreaming()){
+      stop();
+      start();
+    }
+  }
+  
+  public boolean isOffHeap(){
+    return off_heap;
+  }
+  
+  /**
+   * Keeps the frame queue in direct (native) memory instead of a byte[]. 
+   * The USB payloads are copied straight to native memory, Frame.getBayer() 
+   * is a direct buffer, and getFrame(ByteBuffer) into a direct buffer never
+   * passes the heap for Format.Bayer, RGB and BGR. Default is false.<br>
+   * If the camera is streaming, it is restarted to apply the change.
+   * 
+   * @param off_heap
+   */
+  public void setOffHeap(boolean off_heap){
+    if(this.off_heap == off_heap){
+      return;
+    }
+    
+    boolean push_is_streaming = isStreaming();
+    if(push_is_streaming){
+      stop();
+    }
+    
+    this.off_heap = off_heap;
+    urb.frame_queue.setOffHeap(off_heap);
+    
+    if(push_is_streaming){
+      start();
+    }
+  }
+  
+  /**
+   * Size of the USB bulk transfers, in bytes. Must be a multiple of 
+   * LibUsbTransport.PAYLOAD_SIZE (2048). Smaller transfers reach the parser 
+   * sooner, larger transfers cause fewer callbacks.
+   * 0 (default) derives the size from resolution and framerate, see 
+   * LibUsbTransport.autoTransferSize().
+   * 
+   * @param transfer_size
+   */
+  public void setTransferSize(int transfer_size){
+    if(transfer_size < 0 || transfer_size % LibUsbTransport.PAYLOAD_SIZE != 0){
+      throw new IllegalArgumentException("transfer_size must be a multiple of " + LibUsbTransport.PAYLOAD_SIZE + ": " + transfer_size);
+    }
+    setTransfers(transfer_size, num_transfers);
+  }
+  
+  /**
+   * Number of USB bulk transfers in flight. More transfers tolerate longer
+   * delays of the USB-thread.
+   * 0 (default) derives the number from resolution and framerate, see 
+   * LibUsbTransport.autoNumTransfers().
+   * 
+   * @param num_transfers
+   */
+  public void setNumTransfers(int num_transfers){
+    if(num_transfers < 0){
+      throw new IllegalArgumentException("num_transfers must not be negative: " + num_transfers);
+    }
+    setTransfers(transfer_size, num_transfers);
+  }
+  
+  /**
+   * Defines where the completed USB transfers of this camera are parsed.
+   * All cameras share one USB-thread. In EventMode.INLINE (default) it also 
+   * parses all transfers, with many cameras this can saturate a core. 
+   * EventMode.PER_DEVICE and EventMode.POOLED move the parsing to worker 
+   * threads, the USB-thread only hands the transfers over. The transfers of
+   * a camera are always parsed one at a time, in order.
+   * 
+   * @param event_mode
+   */
+  public void setEventMode(EventMode event_mode){
+    if(this.event_mode == event_mode){
+      return;
+    }
+    
+    boolean push_is_streaming = isStreaming();
+    if(push_is_streaming){
+      stop();
+    }
+    
+    this.event_mode = event_mode;
+    
+    if(push_is_streaming){
+      start();
+    }
+  }
+  
+  public EventMode getEventMode(){
+    return event_mode;
+  }
+  
+  private void setTransfers(int transfer_size, int num_transfers){
+    if(this.transfer_size == transfer_size && this.num_transfers == num_transfers){
+      return;
+    }
+    
+    boolean push_is_streaming = isStreaming();
+    if(push_is_streaming){
+      stop();
+    }
+    
+    this.transfer_size = transfer_size;
+    this.num_transfers = num_transfers;
+    
+    if(push_is_streaming){
+      start();
+    }
+  }
+  
+  /**
+   * @return size of the USB bulk transfers, in bytes
+   */
+  public int getTransferSize(){
+    if(transfer_size != 0){
+      return transfer_size;
+    }
+    return LibUsbTransport.autoTransferSize(resolution.num_pixels, framerate);
+  }
+  
+  /**
+   * @return number of USB bulk transfers in flight
+   */
+  public int getNumTransfers(){
+    if(num_transfers != 0){
+      return num_transfers;
+    }
+    return LibUsbTransport.autoNumTransfers(resolution.num_pixels, framerate, getTransferSize());
+  }
+  
+  public FrameQueue.Policy getQueuePolicy(){
+    return queue_policy;
+  }
+  
+  /**
+   * Defines which frames getFrame() gets, and which frame gets dropped when 
+   * getFrame() is not called fast enough and the frame queue is full, see
+   * FrameQueue.Policy.
+   * The default is FrameQueue.Policy.OVERWRITE_NEWEST.<br>
+   * If no queue depth is set and the camera is streaming, it is restarted 
+   * to apply the policy's default depth.
+   * 
+   * @param policy
+   */
+  public void setQueuePolicy(FrameQueue.Policy policy){
+    int depth = getQueueDepth();
+    queue_policy = policy;
+    urb.frame_queue.setPolicy(policy);
+    
+    if(depth != getQueueDepth() && isStreaming()){
+      stop();
+      start();
+    }
+  }
+  
+  /**
+   * Sets a listener that receives every frame as soon as it is complete, on 
+   * a thread owned by this PS3Eye. null removes the listener.
+   * 
+   * @param listener
+   */
+  public void setFrameListener(FrameListener listener){
+    if(listener != null && listener_executor == null){
+      listener_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "PS3Eye Frame Listener " + device_idx);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    setFrameListener(listener, listener_executor);
+  }
+  
+  /**
+   * Sets a listener that receives every frame as soon as it is complete.
+   * The listener is called on the given executor, never on the USB-thread,
+   * one frame at a time and in frame order.<br>
+   * While a listener is set, frames are consumed by the listener, 
+   * getFrame() should not be used.
+   * 
+   * @param listener
+   * @param executor
+   */
+  public void setFrameListener(FrameListener listener, Executor executor){
+    if(listener != null && executor == null){
+      throw new IllegalArgumentException("executor is null");
+    }
+    urb.frame_queue.listener_executor = executor;
+    urb.frame_queue.listener = listener;
+  }
+  
+  public FrameListener getFrameListener(){
+    return urb.frame_queue.listener;
+  }
+  
+  /**
+   * Debayering (Format.RGB, Format.BGR) is split into row bands that are 
+   * processed in parallel by the given pool, e.g. ForkJoinPool.commonPool(),
+   * which can be shared by all cameras.<br>
+   * null (default) converts the frame on the thread calling getFrame().
+   * 
+   * @param pool
+   */
+  public void setDebayerPool(ForkJoinPool pool){
+    urb.frame_queue.debayer_pool = pool;
+  }
+  
+  public ForkJoinPool getDebayerPool(){
+    return urb.frame_queue.debayer_pool;
+  }
+  
   public boolean isStreaming(){
     return is_streaming;
   }
@@ -971,7 +1582,8 @@ public class PS3Eye {
 
   /**
    * When "true", the thread waits until a new frame is available for transfer.
-   * The default value is "true".
+   * The default value is "true". With "false", getFrame() returns the buffer 
+   * unchanged if no frame is queued, use tryGetFrame() to know if it did.
    * 
    * @param wait_for_frame_to_be_available
    * 
@@ -982,17 +1594,42 @@ public class PS3Eye {
   
   
   
+  /**
+   * 
+   * Metadata of the frame that was delivered by the last getFrame() call of
+   * the calling thread. Each thread has its own FrameInfo, its dropped count
+   * are the frames this thread missed. The returned object is updated by 
+   * every getFrame() call, use FrameInfo.set(FrameInfo) to keep a copy.
+   * 
+   */
+  public FrameInfo getFrameInfo(){
+    return urb.frame_queue.getFrameInfo();
+  }
+  
+  
+  /**
+   * 
+   * Counters and timing histograms of the capture pipeline, accumulated over
+   * the lifetime of this PS3Eye. Use Statistics.snapshot() to read them from
+   * any thread.
+   * 
+   */
+  public Statistics getStatistics(){
+    return urb.frame_queue.stats;
+  }
+  
+  
   /**
    * 
    * Copies the available frame-buffer data into the given buffer.
    * If buffer is null or of the wrong size, it gets (re)allocated.
    * In any case a buffer containing the current frame gets returned.
+   * An interrupt doesn't end the wait for a frame, the thread's interrupt 
+   * status is set again once the frame arrived, see getFrameInterruptibly().
    * 
    */
   public byte[] getFrame(byte[] buffer){
-    int num_channels = format.bytes_per_pixel;
-    int num_pixels = resolution.num_pixels;
-    int num_bytes = num_pixels * num_channels;
+    int num_bytes = format.getFrameSize(resolution.w, resolution.h);
     
     // (re)alloc
     if(buffer == null || buffer.length != num_bytes){
@@ -1008,44 +1645,334 @@ public class PS3Eye {
   }
   
   
-  // local buffer ... lazy alloc + dynamic realloc
-  protected byte[] frame_buffer;
-  
-  
   /**
    * 
    * Fills the given pixels-array with the current frame-buffer.
    * "pixels" needs to be allocated and resized to the full framesize.
    * The Pixels are formated either as 0xAARRGGBB or 0xAABBGGRR, depending on
-   * chosen format (Format.RGB or Format.BGR)
+   * chosen format (Format.RGB or Format.BGR). Format.Bayer gives gray pixels,
+   * Format.Gray gives luma as 0xAAYYYYYY. The YUV formats (Format.I420, 
+   * Format.NV12) are only available as bytes, getFrame(byte[]).
+   * The Bayer data is converted straight to the packed pixels, in one pass.
+   * Interrupts are handled like in getFrame(byte[]).
    * 
    */
   public void getFrame(int[] pixels){
+    checkFormat("as packed pixels");
     
     if(pixels == null || pixels.length != resolution.num_pixels){
       System.out.println("error getFrame(pixels_ARGB). pixels_ARGB has wrong size!");
       return;
     }
     
-    // get image data (bytes)
-    frame_buffer = getFrame(frame_buffer);
+    // blocking data transfer
+    if(is_streaming){
+      urb.frame_queue.Dequeue(pixels, resolution.w, resolution.h, format);
+    }
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrame(byte[]), but returns immediately, also if no frame is 
+   * queued. "buffer" needs to hold format.getFrameSize(width, height) bytes.
+   * A capture loop can poll several cameras with it, on one thread.
+   * 
+   * @return true if a new frame was written to buffer
+   * 
+   */
+  public boolean tryGetFrame(byte[] buffer){
+    checkFrameBuffer(buffer);
+    try {
+      return is_streaming && urb.frame_queue.Dequeue(buffer, resolution.w, resolution.h, format, 0, false);
+    } catch (InterruptedException e) {
+      return false; // only thrown if interruptible
+    }
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrame(int[]), but returns immediately, also if no frame is 
+   * queued.
+   * 
+   * @return true if a new frame was written to pixels
+   * 
+   */
+  public boolean tryGetFrame(int[] pixels){
+    checkFramePixels(pixels);
+    try {
+      return is_streaming && urb.frame_queue.Dequeue(pixels, resolution.w, resolution.h, format, 0, false);
+    } catch (InterruptedException e) {
+      return false; // only thrown if interruptible
+    }
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrame(byte[]), but waits at most the given time for a frame.
+   * "buffer" needs to hold format.getFrameSize(width, height) bytes.
+   * 
+   * @return true if a new frame was written to buffer, false if the timeout
+   *         elapsed or the camera stopped streaming
+   * @throws InterruptedException if the thread is interrupted while waiting
+   * 
+   */
+  public boolean getFrame(byte[] buffer, long timeout, TimeUnit unit) throws InterruptedException {
+    checkFrameBuffer(buffer);
+    return is_streaming && urb.frame_queue.Dequeue(buffer, resolution.w, resolution.h, format, Math.max(unit.toNanos(timeout), 0), true);
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrame(int[]), but waits at most the given time for a frame.
+   * 
+   * @return true if a new frame was written to pixels, false if the timeout
+   *         elapsed or the camera stopped streaming
+   * @throws InterruptedException if the thread is interrupted while waiting
+   * 
+   */
+  public boolean getFrame(int[] pixels, long timeout, TimeUnit unit) throws InterruptedException {
+    checkFramePixels(pixels);
+    return is_streaming && urb.frame_queue.Dequeue(pixels, resolution.w, resolution.h, format, Math.max(unit.toNanos(timeout), 0), true);
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrame(byte[]), but an interrupt ends the wait with an 
+   * InterruptedException, instead of being ignored.
+   * "buffer" needs to hold format.getFrameSize(width, height) bytes.
+   * 
+   * @return true if a new frame was written to buffer, false if the camera 
+   *         stopped streaming
+   * 
+   */
+  public boolean getFrameInterruptibly(byte[] buffer) throws InterruptedException {
+    checkFrameBuffer(buffer);
+    return is_streaming && urb.frame_queue.Dequeue(buffer, resolution.w, resolution.h, format, -1, true);
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrame(int[]), but an interrupt ends the wait with an 
+   * InterruptedException.
+   * 
+   * @return true if a new frame was written to pixels, false if the camera 
+   *         stopped streaming
+   * 
+   */
+  public boolean getFrameInterruptibly(int[] pixels) throws InterruptedException {
+    checkFramePixels(pixels);
+    return is_streaming && urb.frame_queue.Dequeue(pixels, resolution.w, resolution.h, format, -1, true);
+  }
+  
+  
+  // the YUV formats are only available as whole frames in bytes. Checked 
+  // before a frame is claimed, it would be lost otherwise.
+  private void checkFormat(String output){
+    if(format == Format.I420 || format == Format.NV12){
+      throw new IllegalArgumentException(format + " is not available " + output);
+    }
+  }
+  
+  private void checkFrameBuffer(byte[] buffer){
+    int num_bytes = format.getFrameSize(resolution.w, resolution.h);
+    if(buffer == null || buffer.length != num_bytes){
+      throw new IllegalArgumentException("buffer needs "+num_bytes+" bytes for "+format+" at "+resolution);
+    }
+  }
+  
+  private void checkFramePixels(int[] pixels){
+    checkFormat("as packed pixels");
+    if(pixels == null || pixels.length != resolution.num_pixels){
+      throw new IllegalArgumentException("pixels needs "+resolution.num_pixels+" elements at "+resolution);
+    }
+  }
+  
+  
+  /**
+   * 
+   * Leases the oldest queued frame without copying it, blocking until one is
+   * available. The Frame points into the frame queue, e.g. Frame.getBayer() 
+   * is a read-only view of the raw data. Its slot is not written by the 
+   * camera until Frame.release() is called, which must happen exactly once 
+   * (plus once per Frame.retain()), and before stop().<br>
+   * Leased frames reduce the free slots of the queue, the queue depth should
+   * be at least 2 + the number of frames that are held at a time, see 
+   * setQueueDepth().
+   * 
+   * @return the leased frame, or null if the camera is not streaming. An 
+   *         interrupt doesn't end the wait, the interrupt status is set 
+   *         again, see acquireFrameInterruptibly()
+   * 
+   */
+  public Frame acquireFrame(){
+    if(!is_streaming){
+      return null;
+    }
+    return urb.frame_queue.acquire(true);
+  }
+  
+  
+  /**
+   * 
+   * Same as acquireFrame(), but returns null immediately if no frame is 
+   * queued.
+   * 
+   */
+  public Frame tryAcquireFrame(){
+    if(!is_streaming){
+      return null;
+    }
+    return urb.frame_queue.acquire(false);
+  }
+  
+  
+  /**
+   * 
+   * Same as acquireFrame(), but waits at most the given time for a frame.
+   * 
+   * @return the leased frame, or null if the timeout elapsed or the camera 
+   *         stopped streaming
+   * @throws InterruptedException if the thread is interrupted while waiting
+   * 
+   */
+  public Frame acquireFrame(long timeout, TimeUnit unit) throws InterruptedException {
+    if(!is_streaming){
+      return null;
+    }
+    return urb.frame_queue.acquire(Math.max(unit.toNanos(timeout), 0), true);
+  }
+  
+  
+  /**
+   * 
+   * Same as acquireFrame(), but an interrupt ends the wait with an 
+   * InterruptedException.
+   * 
+   * @return the leased frame, or null if the camera stopped streaming
+   * 
+   */
+  public Frame acquireFrameInterruptibly() throws InterruptedException {
+    if(!is_streaming){
+      return null;
+    }
+    return urb.frame_queue.acquire(-1, true);
+  }
+  
+  
+  /**
+   * 
+   * Copies or converts the current frame into the given buffer, e.g. a direct 
+   * ByteBuffer for native code. The frame is written at the buffer's position,
+   * which is advanced by format.getFrameSize(width, height) bytes.
+   * Format.Bayer, RGB and BGR are converted from buffer to buffer, see 
+   * setOffHeap(), the other formats are converted on the heap first.
+   * 
+   */
+  public void getFrame(ByteBuffer buffer){
+    // blocking data transfer
+    if(is_streaming){
+      urb.frame_queue.Dequeue(buffer, resolution.w, resolution.h, format);
+    }
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrame(byte[]), but only the rectangle [x, x + w) x [y, y + h)
+   * of the frame is converted, into a buffer of w * h pixels. The borders of
+   * the rectangle are interpolated from the surrounding frame, the result is
+   * identical to the same rectangle of the full frame.
+   * 
+   */
+  public byte[] getFrame(byte[] buffer, int x, int y, int w, int h){
+    checkFormat("for a region of interest");
+    Debayer.checkROI(resolution.w, resolution.h, x, y, w, h);
+    int num_bytes = format.getFrameSize(w, h);
+    
+    // (re)alloc
+    if(buffer == null || buffer.length != num_bytes){
+      buffer = new byte[num_bytes];
+    }
+    
+    // blocking data transfer
+    if(is_streaming){
+      urb.frame_queue.Dequeue(buffer, resolution.w, resolution.h, format, x, y, w, h);
+    }
     
-    int bayer=0,rgb_r=0, rgb_g=0, rgb_b=0;
+    return buffer;
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrame(int[]), but only the rectangle [x, x + w) x [y, y + h) 
+   * of the frame is converted. "pixels" needs to hold w * h pixels.
+   * 
+   */
+  public void getFrame(int[] pixels, int x, int y, int w, int h){
+    checkFormat("as packed pixels");
+    Debayer.checkROI(resolution.w, resolution.h, x, y, w, h);
+    if(pixels == null || pixels.length != w * h){
+      throw new IllegalArgumentException("pixels needs "+(w * h)+" elements for a "+w+" x "+h+" region");
+    }
     
-    if(format == Format.Bayer){
-      for(int i = 0; i < pixels.length; i++){
-        bayer = frame_buffer[i] & 0xFF;
-        pixels[i] = 0xFF000000 | (bayer<<16) | (bayer<<8) | bayer;
-      }
+    // blocking data transfer
+    if(is_streaming){
+      urb.frame_queue.Dequeue(pixels, resolution.w, resolution.h, format, x, y, w, h);
     }
+  }
+  
+  
+  /**
+   * 
+   * Half resolution output, e.g. 320 x 240 for VGA: each 2x2 Bayer quad 
+   * becomes one pixel (R, the average of both G, B), without interpolation.
+   * At about a quarter of the cost of getFrame(byte[]) it suits previews and
+   * low-res analysis. Format.Bayer gives one gray byte per quad, Format.Gray
+   * the luma of the quad's color.
+   * If buffer is null or of the wrong size, it gets (re)allocated.
+   * 
+   */
+  public byte[] getFrameHalf(byte[] buffer){
+    checkFormat("at half resolution");
+    int num_bytes = format.getFrameSize(resolution.w / 2, resolution.h / 2);
     
-    if(format == Format.RGB || format == Format.BGR){
-      for(int i = 0, ch = 0; i < pixels.length; i++){
-        rgb_r = frame_buffer[ch++] & 0xFF;
-        rgb_g = frame_buffer[ch++] & 0xFF;
-        rgb_b = frame_buffer[ch++] & 0xFF;
-        pixels[i] = 0xFF000000 | (rgb_r<<16) | (rgb_g<<8) | rgb_b;
-      }
+    // (re)alloc
+    if(buffer == null || buffer.length != num_bytes){
+      buffer = new byte[num_bytes];
+    }
+    
+    // blocking data transfer
+    if(is_streaming){
+      urb.frame_queue.DequeueHalf(buffer, resolution.w, resolution.h, format);
+    }
+    
+    return buffer;
+  }
+  
+  
+  /**
+   * 
+   * Same as getFrameHalf(byte[]), into packed pixels, see getFrame(int[]).
+   * "pixels" needs to hold (width/2) * (height/2) pixels.
+   * 
+   */
+  public void getFrameHalf(int[] pixels){
+    checkFormat("as packed pixels");
+    int num_pixels = (resolution.w / 2) * (resolution.h / 2);
+    if(pixels == null || pixels.length != num_pixels){
+      throw new IllegalArgumentException("pixels needs "+num_pixels+" elements at half "+resolution);
+    }
+    
+    // blocking data transfer
+    if(is_streaming){
+      urb.frame_queue.DequeueHalf(pixels, resolution.w, resolution.h, format);
     }
   }
   
@@ -0,0 +1,102 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.util.Arrays;
+
+
+/**
+ * 
+ * In-memory copy of a device's 8-bit register file.<br>
+ * Registers are learned from the writes and reads that go to the device. 
+ * Once a register is known, reads are served from the shadow and writes of
+ * the same value are skipped. Volatile registers (changed by the device 
+ * itself, or ports/commands where every write counts) are never cached.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class RegisterShadow {
+  
+  static final private int UNKNOWN = -1;
+  
+  private final int[]     values    = new int[256];
+  private final boolean[] volatiles = new boolean[256];
+  
+  public RegisterShadow(int ... volatile_regs){
+    for(int reg : volatile_regs){
+      volatiles[reg & 0xFF] = true;
+    }
+    invalidate();
+  }
+  
+  /**
+   * @return true if the register is known to hold the value already
+   */
+  public boolean contains(int reg, int val){
+    int cur = values[reg & 0xFF];
+    return cur != UNKNOWN && cur == (val & 0xFF);
+  }
+  
+  /**
+   * @return the register's value, or -1 if it is unknown or volatile
+   */
+  public int get(int reg){
+    return values[reg & 0xFF];
+  }
+  
+  /**
+   * Stores a value that was written to or read from the device.
+   */
+  public void set(int reg, int val){
+    reg &= 0xFF;
+    if(!volatiles[reg]){
+      values[reg] = val & 0xFF;
+    }
+  }
+  
+  public void invalidate(int reg){
+    values[reg & 0xFF] = UNKNOWN;
+  }
+  
+  /**
+   * Marks registers as volatile (or cacheable again), e.g. while an automatic
+   * control of the device is driving them. Their values are forgotten.
+   */
+  public void setVolatile(boolean is_volatile, int ... regs){
+    for(int reg : regs){
+      volatiles[reg & 0xFF] = is_volatile;
+      values   [reg & 0xFF] = UNKNOWN;
+    }
+  }
+  
+  /**
+   * Forgets all values, e.g. after a reset of the device.
+   */
+  public void invalidate(){
+    Arrays.fill(values, UNKNOWN);
+  }
+
+}
@@ -0,0 +1,182 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * 
+ * Replays the bulk transfers of a file written by TransferRecorder, on its
+ * own thread, either at the original timing or as fast as possible.<br>
+ * The file is read through a memory-mapped window that is moved along as 
+ * the replay progresses.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class ReplayTransport implements Transport {
+  
+  // size of the mapped window
+  static final private long WINDOW_SIZE = 1L << 28;
+  
+  private final File    file;
+  private final boolean realtime;
+  private final boolean loop;
+  private final int     frame_size;
+  
+  private Thread           replay_thread;
+  private volatile boolean exit_signaled;
+  
+  /**
+   * @param file     recorded with TransferRecorder
+   * @param realtime true: original timing, false: as fast as possible
+   * @param loop     true: start over at the end of the file
+   */
+  public ReplayTransport(File file, boolean realtime, boolean loop) throws IOException {
+    this.file       = file;
+    this.realtime   = realtime;
+    this.loop       = loop;
+    this.frame_size = readFrameSize(file);
+  }
+  
+  
+  /**
+   * @return frame size (number of Bayer pixels) of the recorded stream
+   */
+  static public int readFrameSize(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] magic = new byte[TransferRecorder.MAGIC.length];
+      raf.readFully(magic);
+      if(!Arrays.equals(magic, TransferRecorder.MAGIC)){
+        throw new IOException("not a PS3Eye recording: " + file);
+      }
+      return raf.readInt();
+    } finally {
+      raf.close();
+    }
+  }
+  
+  public int getFrameSize(){
+    return frame_size;
+  }
+  
+
+  @Override
+  public boolean start(final URBDesc urb) {
+    exit_signaled = false;
+    replay_thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          do {
+            replay(urb);
+          } while(loop && !exit_signaled);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    replay_thread.setName("PS3Eye Replay Thread");
+    replay_thread.start();
+    return true;
+  }
+  
+  
+  @Override
+  public void stop() {
+    exit_signaled = true;
+    if(replay_thread != null){
+      LockSupport.unpark(replay_thread);
+      try {
+        replay_thread.join();
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+      replay_thread = null;
+    }
+  }
+  
+  
+  private void replay(URBDesc urb) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long file_size  = channel.size();
+      long window_pos = 0;
+      MappedByteBuffer window = null;
+      
+      long time_start = System.nanoTime();
+      long pos = TransferRecorder.HEADER_SIZE;
+      
+      while(!exit_signaled && pos + TransferRecorder.RECORD_HEADER_SIZE <= file_size){
+        
+        // move the window, if the record header is not inside
+        if(window == null || pos + TransferRecorder.RECORD_HEADER_SIZE > window_pos + window.capacity()){
+          window_pos = pos;
+          window = channel.map(FileChannel.MapMode.READ_ONLY, window_pos, Math.min(WINDOW_SIZE, file_size - window_pos));
+        }
+        
+        int  ptr  = (int) (pos - window_pos);
+        long time = window.getLong(ptr);
+        int  len  = window.getInt (ptr + 8);
+        
+        if(pos + TransferRecorder.RECORD_HEADER_SIZE + len > file_size){
+          break; // truncated record
+        }
+        
+        // move the window, if the record data is not inside
+        if(pos + TransferRecorder.RECORD_HEADER_SIZE + len > window_pos + window.capacity()){
+          window_pos = pos;
+          window = channel.map(FileChannel.MapMode.READ_ONLY, window_pos, Math.min(Math.max(WINDOW_SIZE, TransferRecorder.RECORD_HEADER_SIZE + len), file_size - window_pos));
+          ptr = 0;
+        }
+        
+        if(realtime){
+          long wait;
+          while(!exit_signaled && (wait = time_start + time - System.nanoTime()) > 0){
+            LockSupport.parkNanos(this, wait);
+          }
+        }
+        
+        ByteBuffer transfer = window.duplicate();
+        transfer.position(ptr + TransferRecorder.RECORD_HEADER_SIZE).limit(ptr + TransferRecorder.RECORD_HEADER_SIZE + len);
+        urb.pkt_scan(transfer.slice(), len, System.nanoTime());
+        
+        pos += TransferRecorder.RECORD_HEADER_SIZE + len;
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+}
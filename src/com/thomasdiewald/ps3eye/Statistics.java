@@ -0,0 +1,278 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * 
+ * Counters and timing histograms of a camera's capture pipeline.<br>
+ * <br>
+ * The USB-thread's counters and histograms have a single writer. Their 
+ * updates are plain reads and ordered writes (lazySet), they never 
+ * allocate, lock or retry, so they cost the USB-thread next to nothing.<br>
+ * The consumer's can be updated by several threads at once (getFrame(), 
+ * leased Frames, the FrameListener, a FrameSynchronizer), their updates 
+ * are atomic, see incShared() and recordShared(). Any other thread can 
+ * take a snapshot() at any time.<br>
+ * <br>
+ * Histograms have power-of-two buckets: bucket 0 counts values of 0, 
+ * bucket b counts values in [2^(b-1), 2^b).
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class Statistics {
+  
+  static public enum Counter{
+    // USB-thread
+    BYTES_RECEIVED    , // bytes of all transfers
+    PAYLOADS          , // UVC payloads
+    BAD_HEADERS       , // payloads with an invalid header or without PTS
+    STREAM_ERRORS     , // payloads with UVC_STREAM_ERR set
+    SIZE_MISMATCHES   , // frames discarded because of a wrong size
+    FRAMES_DISCARDED  , // incomplete frames, including size mismatches
+    FRAMES_COMPLETED  , // frames passed to the FrameQueue
+    FRAMES_OVERWRITTEN, // completed frames, lost to the queue policy
+    RECORDER_DROPPED  , // transfers not recorded, the TransferRecorder fell behind
+    // consumer
+    FRAMES_DELIVERED  , // frames read by the consumer
+    FRAMES_SKIPPED    , // queued frames skipped for a newer one, Policy.LATEST
+  }
+  
+  static public enum Timing{
+    FRAME_INTERVAL  , // USB-thread: nanoseconds between two completed frames
+    QUEUE_LATENCY   , // consumer: nanoseconds from frame completion to dequeue
+    DEBAYER_DURATION, // consumer: nanoseconds of the format conversion
+  }
+  
+  static final public int NUM_BUCKETS = 64;
+  
+  // per histogram: buckets, count, sum, max
+  static final private int HISTOGRAM_SIZE = NUM_BUCKETS + 3;
+  
+  protected final AtomicLongArray counters   = new AtomicLongArray(Counter.values().length);
+  protected final AtomicLongArray histograms = new AtomicLongArray(Timing.values().length * HISTOGRAM_SIZE);
+  
+  // USB-thread: time of the last completed frame
+  private long last_frame_time = 0;
+  
+  public Statistics(){
+  }
+  
+  
+  protected void add(Counter counter, long value){
+    int idx = counter.ordinal();
+    counters.lazySet(idx, counters.get(idx) + value);
+  }
+  
+  protected void inc(Counter counter){
+    add(counter, 1);
+  }
+  
+  protected void record(Timing timing, long value){
+    if(value < 0){
+      value = 0;
+    }
+    int ptr = timing.ordinal() * HISTOGRAM_SIZE;
+    int idx = ptr + bucket(value);
+    histograms.lazySet(idx, histograms.get(idx) + 1);
+    
+    idx = ptr + NUM_BUCKETS;
+    histograms.lazySet(idx, histograms.get(idx) + 1);
+    idx++;
+    histograms.lazySet(idx, histograms.get(idx) + value);
+    idx++;
+    if(value > histograms.get(idx)){
+      histograms.lazySet(idx, value);
+    }
+  }
+  
+  // same as inc(), for counters with several writers
+  protected void incShared(Counter counter){
+    counters.incrementAndGet(counter.ordinal());
+  }
+  
+  // same as record(), for histograms with several writers
+  protected void recordShared(Timing timing, long value){
+    if(value < 0){
+      value = 0;
+    }
+    int ptr = timing.ordinal() * HISTOGRAM_SIZE;
+    histograms.incrementAndGet(ptr + bucket(value));
+    histograms.incrementAndGet(ptr + NUM_BUCKETS);
+    histograms.getAndAdd(ptr + NUM_BUCKETS + 1, value);
+    
+    int idx = ptr + NUM_BUCKETS + 2;
+    long max;
+    while(value > (max = histograms.get(idx)) && !histograms.compareAndSet(idx, max, value));
+  }
+  
+  // USB-thread: a frame was completed at the given System.nanoTime()
+  protected void frameCompleted(long time){
+    inc(Counter.FRAMES_COMPLETED);
+    if(last_frame_time != 0){
+      record(Timing.FRAME_INTERVAL, time - last_frame_time);
+    }
+    last_frame_time = time;
+  }
+  
+  // the stream (re)starts, the next frame has no previous one to measure the
+  // interval to. Called while the USB-thread is not producing.
+  protected void restart(){
+    last_frame_time = 0;
+  }
+  
+  static protected int bucket(long value){
+    return Math.min(64 - Long.numberOfLeadingZeros(value), NUM_BUCKETS - 1);
+  }
+  
+  
+  
+  /**
+   * @return a copy of the current state
+   */
+  public Snapshot snapshot(){
+    return snapshot(new Snapshot());
+  }
+  
+  /**
+   * Copies the current state to the given snapshot, to read it without 
+   * allocating.
+   */
+  public Snapshot snapshot(Snapshot snapshot){
+    for(int i = 0; i < snapshot.counters.length; i++){
+      snapshot.counters[i] = counters.get(i);
+    }
+    for(int i = 0; i < snapshot.histograms.length; i++){
+      snapshot.histograms[i] = histograms.get(i);
+    }
+    snapshot.time = System.nanoTime();
+    return snapshot;
+  }
+  
+  
+  
+  /**
+   * 
+   * State of the Statistics at a point in time. Counters and histograms are
+   * each read atomically, but not all together.
+   *
+   */
+  static public class Snapshot {
+    
+    protected final long[] counters   = new long[Counter.values().length];
+    protected final long[] histograms = new long[Timing.values().length * HISTOGRAM_SIZE];
+    protected long time;
+    
+    /**
+     * @return System.nanoTime() at which the snapshot was taken
+     */
+    public long getTime(){
+      return time;
+    }
+    
+    public long get(Counter counter){
+      return counters[counter.ordinal()];
+    }
+    
+    /**
+     * @return number of values in the given bucket
+     */
+    public long getBucket(Timing timing, int bucket){
+      return histograms[timing.ordinal() * HISTOGRAM_SIZE + bucket];
+    }
+    
+    public long getCount(Timing timing){
+      return histograms[timing.ordinal() * HISTOGRAM_SIZE + NUM_BUCKETS];
+    }
+    
+    public long getMax(Timing timing){
+      return histograms[timing.ordinal() * HISTOGRAM_SIZE + NUM_BUCKETS + 2];
+    }
+    
+    public double getMean(Timing timing){
+      long count = getCount(timing);
+      long sum   = histograms[timing.ordinal() * HISTOGRAM_SIZE + NUM_BUCKETS + 1];
+      return count > 0 ? sum / (double) count : 0;
+    }
+    
+    /**
+     * @param  percentile [0, 100]
+     * @return upper bound of the bucket containing the given percentile
+     */
+    public long getPercentile(Timing timing, double percentile){
+      long count = getCount(timing);
+      if(count == 0){
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * percentile / 100.0);
+      long sum = 0;
+      for(int b = 0; b < NUM_BUCKETS; b++){
+        sum += getBucket(timing, b);
+        if(sum >= Math.max(rank, 1)){
+          return Math.min((1L << b) - 1, getMax(timing));
+        }
+      }
+      return getMax(timing);
+    }
+    
+    /**
+     * @return counters and histogram buckets since the given, earlier 
+     *         snapshot. The max values are kept, as they can't be subtracted.
+     */
+    public Snapshot since(Snapshot earlier){
+      Snapshot delta = new Snapshot();
+      for(int i = 0; i < counters.length; i++){
+        delta.counters[i] = counters[i] - earlier.counters[i];
+      }
+      for(int i = 0; i < histograms.length; i++){
+        delta.histograms[i] = histograms[i] - earlier.histograms[i];
+      }
+      for(Timing timing : Timing.values()){
+        int idx = timing.ordinal() * HISTOGRAM_SIZE + NUM_BUCKETS + 2;
+        delta.histograms[idx] = histograms[idx];
+      }
+      delta.time = time;
+      return delta;
+    }
+    
+    @Override
+    public String toString(){
+      StringBuilder sb = new StringBuilder();
+      for(Counter counter : Counter.values()){
+        sb.append(String.format("%-18s %d\n", counter, get(counter)));
+      }
+      for(Timing timing : Timing.values()){
+        sb.append(String.format("%-18s n=%d, mean=%.3f ms, p50<=%.3f ms, p99<=%.3f ms, max=%.3f ms\n", timing, 
+            getCount(timing), getMean(timing) / 1e6, 
+            getPercentile(timing, 50) / 1e6, getPercentile(timing, 99) / 1e6, getMax(timing) / 1e6));
+      }
+      return sb.toString();
+    }
+  }
+
+}
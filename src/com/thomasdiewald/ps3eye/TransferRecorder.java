@@ -0,0 +1,203 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * 
+ * Writes the raw bulk transfers of a camera to a file, for ReplayTransport.
+ * <br>
+ * <pre>
+ *   file   = header record*
+ *   header = "PS3EYE" 0x00 0x01, int frame_size
+ *   record = long time (nanoseconds since the first record), int length, byte[length]
+ * </pre>
+ * 
+ * All numbers are big-endian. Records are collected in one of two buffers. 
+ * When it is full, the buffers are swapped and a writer thread writes the 
+ * full one to the file, so the USB-thread never waits for the disk. If the
+ * writer falls behind, i.e. the other buffer is not written yet, records 
+ * are dropped and counted, see getDropped(). If writing the file fails, 
+ * recording stops, see getFailure(), and close() throws the exception.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public class TransferRecorder {
+  
+  static final protected byte[] MAGIC = { 'P', 'S', '3', 'E', 'Y', 'E', 0x00, 0x01 };
+  static final protected int HEADER_SIZE = MAGIC.length + 4;
+  static final protected int RECORD_HEADER_SIZE = 8 + 4;
+  
+  static final private int BUFFER_SIZE = 1 << 22;
+  
+  // handed to the writer thread after the last buffer
+  static final private ByteBuffer END = ByteBuffer.allocate(0);
+  
+  private FileChannel channel;
+  private ByteBuffer  buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private long        time_start = -1;
+  private long        dropped = 0;
+  private boolean     closed = false;
+  
+  // set by the writer thread, if writing the file failed
+  private volatile IOException failure = null;
+  
+  // full buffers go to the writer thread, written ones come back empty
+  private final ArrayBlockingQueue<ByteBuffer> full  = new ArrayBlockingQueue<ByteBuffer>(3);
+  private final ArrayBlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<ByteBuffer>(1);
+  private final Thread writer;
+  
+  public TransferRecorder(File file, int frame_size) throws IOException {
+    channel = new FileOutputStream(file).getChannel();
+    buffer.put(MAGIC);
+    buffer.putInt(frame_size);
+    empty.offer(ByteBuffer.allocateDirect(BUFFER_SIZE));
+    
+    writer = new Thread("PS3Eye TransferRecorder"){
+      public void run() {
+        writeBuffers();
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+  }
+  
+  
+  /**
+   * Appends len bytes of the given transfer, starting at index 0, completed
+   * at the given System.nanoTime().<br>
+   * Never waits for the file. Returns false if the record was dropped, 
+   * because the writer thread is behind, or because writing the file failed
+   * (getFailure() is set then).
+   */
+  synchronized public boolean write(ByteBuffer transfer, int len, long time) {
+    if(closed){
+      return true;
+    }
+    if(failure != null){
+      return false;
+    }
+    
+    if(time_start == -1){
+      time_start = time;
+    }
+    
+    if(buffer.remaining() < RECORD_HEADER_SIZE + len){
+      ByteBuffer next = RECORD_HEADER_SIZE + len <= BUFFER_SIZE ? empty.poll() : null;
+      if(next == null){
+        dropped++;
+        return false;
+      }
+      full.offer(buffer);
+      buffer = next;
+    }
+    
+    buffer.putLong(time - time_start);
+    buffer.putInt(len);
+    
+    ByteBuffer src = transfer.duplicate();
+    src.clear().limit(len);
+    buffer.put(src);
+    return true;
+  }
+  
+  
+  /**
+   * @return number of transfers that were not recorded, because the writer
+   *         thread was behind
+   */
+  synchronized public long getDropped(){
+    return dropped;
+  }
+  
+  /**
+   * @return the exception that stopped the recording, or null while the 
+   *         file is written
+   */
+  public IOException getFailure(){
+    return failure;
+  }
+  
+  
+  // writer thread: writes full buffers until END, then closes the file
+  private void writeBuffers(){
+    try {
+      ByteBuffer full_buffer;
+      while((full_buffer = full.take()) != END){
+        full_buffer.flip();
+        while(full_buffer.hasRemaining()){
+          channel.write(full_buffer);
+        }
+        full_buffer.clear();
+        empty.offer(full_buffer);
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (InterruptedException e) {
+      // closed
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+  
+  
+  /**
+   * Writes the remaining records and closes the file. Waits for the writer
+   * thread.
+   * 
+   * @throws IOException if writing the file failed, see getFailure()
+   */
+  public void close() throws IOException {
+    synchronized(this){
+      if(closed){
+        return;
+      }
+      closed = true;
+      full.offer(buffer);
+      full.offer(END);
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if(failure != null){
+      throw failure;
+    }
+  }
+
+}
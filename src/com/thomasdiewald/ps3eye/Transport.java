@@ -0,0 +1,53 @@
+/**
+ * 
+ * PS3Eye | Copyright (C) 2017 Thomas Diewald (www.thomasdiewald.com)
+ * 
+ * src  - https://github.com/diwi/PS3Eye
+ * 
+ * A Processing/Java library for PS3Eye capture using libusb.
+ * MIT License: https://opensource.org/licenses/MIT
+ * 
+ * 
+ * _____________________________________________________________________________
+ * 
+ * "PS3Eye" is a java-port of the "PS3EYEDriver" project by Eugene Zatepyakin. 
+ * 
+ * src: https://github.com/inspirit/PS3EYEDriver
+ *      https://github.com/inspirit/PS3EYEDriver/blob/master/LICENSE
+ * 
+ * _____________________________________________________________________________
+ * 
+ * 
+ */
+
+
+
+package com.thomasdiewald.ps3eye;
+
+
+/**
+ * 
+ * Source of the PS3Eye's bulk transfers.<br>
+ * A Transport delivers every transfer, in order and from one thread at a 
+ * time, to URBDesc.pkt_scan(), together with the System.nanoTime() at which
+ * it completed.
+ * 
+ * @author Thomas Diewald
+ *
+ */
+public interface Transport {
+  
+  /**
+   * Starts delivering transfers to the given URBDesc.
+   * 
+   * @return false if not all transfers could be started
+   */
+  public boolean start(URBDesc urb);
+  
+  /**
+   * Stops delivering transfers. When this returns, pkt_scan() is no longer
+   * called.
+   */
+  public void stop();
+
+}
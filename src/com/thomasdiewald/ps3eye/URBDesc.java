@@ -24,20 +24,15 @@
 
 package com.thomasdiewald.ps3eye;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import org.usb4java.ConfigDescriptor;
-import org.usb4java.Device;
 import org.usb4java.DeviceHandle;
-import org.usb4java.EndpointDescriptor;
-import org.usb4java.Interface;
-import org.usb4java.InterfaceDescriptor;
-import org.usb4java.LibUsb;
-import org.usb4java.LibUsbException;
-import org.usb4java.Transfer;
-import org.usb4java.TransferCallback;
 
 /**
+ * 
+ * Parses the PS3Eye's bulk stream into frames of the FrameQueue. The bulk 
+ * transfers are delivered by a Transport, usually LibUsbTransport.
  * 
  * @author Thomas Diewald
  *
@@ -54,27 +49,33 @@ public class URBDesc {
   static final private int UVC_STREAM_EOF = (1 << 1);
   static final private int UVC_STREAM_FID = (1 << 0);
 
-  static final private int TRANSFER_SIZE = 65536;
-  static final private int NUM_TRANSFERS = 5;
-
   // packet types when moving from iso buf to frame buf
   static private enum gspca_packet_type {
     DISCARD_PACKET, FIRST_PACKET, INTER_PACKET, LAST_PACKET
   };
 
-  private int num_active_transfers = 0;
-
   private gspca_packet_type last_packet_type = gspca_packet_type.DISCARD_PACKET;
   private int last_pts = 0;
   private int last_fid = 0;
-  private Transfer[] xfr = new Transfer[NUM_TRANSFERS]; // NULL
 
+  private int cur_frame_pts = 0;
   private int cur_frame_start = 0;
   private int cur_frame_data_len = 0;
   private int frame_size = 0;
   
+  // System.nanoTime() at which the transfer being parsed completed
+  private long transfer_time = 0;
+  
+  // the frame queue's frame_store, if its frames are kept off-heap
+  private ByteBuffer frame_dst;
+  
   protected FrameQueue frame_queue = new FrameQueue();
   
+  protected Transport transport;
+  
+  // if set, every transfer is written to it before it is parsed
+  protected volatile TransferRecorder recorder;
+  
   public URBDesc() {
   }
 
@@ -82,172 +83,67 @@ public class URBDesc {
     close_transfers();
   }
 
-  //
-  // look for an input transfer endpoint in an alternate setting
-  // libusb_endpoint_descriptor
-  //
-  static protected byte find_ep(Device device) {
-
-    byte ep_addr = 0;
-
-    ConfigDescriptor config = new ConfigDescriptor();
-    int rval = LibUsb.getActiveConfigDescriptor(device, config);
-    if (rval != 0) {
-      throw new LibUsbException("error LibUsb.getActiveConfigDescriptor", rval);
-    }
-
-    InterfaceDescriptor altsetting = null;
-
-    for (int i = 0; i < config.bNumInterfaces(); i++) {
-      Interface[] iface = config.iface();
-      altsetting = iface[i].altsetting()[0];
-      if (altsetting.bInterfaceNumber() == 0) {
-        break;
-      }
-    }
-
-    EndpointDescriptor ep;
-    for (int i = 0; i < altsetting.bNumEndpoints(); i++) {
-      ep = altsetting.endpoint()[i];
-      if ((ep.bmAttributes() & LibUsb.TRANSFER_TYPE_MASK) == LibUsb.TRANSFER_TYPE_BULK && ep.wMaxPacketSize() != 0) {
-        ep_addr = ep.bEndpointAddress();
-        break;
-      }
-    }
-    LibUsb.freeConfigDescriptor(config);
+  // Resets the parser and the frame queue for a new stream
+  protected void reset(int curr_frame_size, int num_frames) {
+    // Initialize the frame queue
+    frame_size = curr_frame_size;
+    
+    frame_queue.resize(frame_size, num_frames);
 
-    return ep_addr;
+    // Initialize the current frame pointer to the start of the buffer; it will
+    // be updated as frames are completed and pushed onto the frame queue
+    frame_dst = frame_queue.isOffHeap() ? frame_queue.frame_store.duplicate() : null;
+    cur_frame_start = frame_queue.GetFrameBufferStart();
+    cur_frame_data_len = 0;
+    last_packet_type = gspca_packet_type.DISCARD_PACKET;
+    
+    last_pts = 0;
+    last_fid = 0;
+    cur_frame_pts = 0;
   }
-
-
-  private TransferCallback transfer_completed_callback = new TransferCallback() {
-    @Override
-    public void processTransfer(Transfer xfr) {
-      TranferUserData userdata = (TranferUserData) xfr.userData();
-      URBDesc urb = userdata.parent;
-      
-      int status = xfr.status();
-      if (status != LibUsb.TRANSFER_COMPLETED) {
-        if (status == LibUsb.TRANSFER_CANCELLED) {
-          LibUsb.freeTransfer(xfr);
-          urb.transfer_canceled(); 
-        } else {
-          urb.close_transfers();
-        }
-        return;
-      } 
-
-      urb.pkt_scan(xfr);
-
-      if (LibUsb.submitTransfer(xfr) != 0) {
-        System.out.printf("error re-submitting URB\n");
-        urb.close_transfers();
-      }
-      
-    }
-  };
-
-
-  protected void close_transfers() {
- 
-    synchronized(this) {
-      try {
   
-        if (num_active_transfers == 0){
-          return;
-        }
-
-        // Cancel any pending transfers
-        for (int index = 0; index < NUM_TRANSFERS; ++index) {
-          try{
-            if(xfr[index].getPointer() != 0){
-              int rval = LibUsb.cancelTransfer(xfr[index]);
-              if(rval != 0){
-                System.out.println("error close_transfers");
-              }
-            } 
-            xfr[index] = null;
-          } catch(Exception e){
-//            e.printStackTrace();
-            // getting a IllegalStateException sometimes, dunno why
-          }
-        }
-
-        while(num_active_transfers != 0){
-          this.wait();
-        }
-   
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
-    
-    PS3Eye.usb.cameraStopped();
-//    frame_queue = null;
+  
+  protected boolean start_transfers(DeviceHandle handle, int curr_frame_size, int num_frames) {
+    return start_transfers(new LibUsbTransport(handle), curr_frame_size, num_frames);
   }
   
   
-  private void transfer_canceled() {
-    synchronized(this) 
-    {
-      --num_active_transfers;
-      this.notify();
-    }
+  protected boolean start_transfers(Transport transport, int curr_frame_size, int num_frames) {
+    reset(curr_frame_size, num_frames);
+    this.transport = transport;
+    return transport.start(this);
   }
   
   
-  static class TranferUserData{
-    URBDesc parent;
-    int idx;
-    int flag = 0;
-    TranferUserData(URBDesc parent, int idx){
-      this.parent = parent;
-      this.idx = idx;
+  protected void close_transfers() {
+    Transport transport = this.transport;
+    if(transport != null){
+      transport.stop();
+      this.transport = null;
     }
   }
   
   
-  protected boolean start_transfers(DeviceHandle handle, int curr_frame_size) {
-    // Initialize the frame queue
-    frame_size = curr_frame_size;
-    
-    frame_queue.resize(frame_size);
-
-    // Initialize the current frame pointer to the start of the buffer; it will
-    // be updated as frames are completed and pushed onto the frame queue
-    cur_frame_start = frame_queue.GetFrameBufferStart();
-    cur_frame_data_len = 0;
-
-    // Find the bulk transfer endpoint
-    byte bulk_endpoint = find_ep(LibUsb.getDevice(handle));
-    LibUsb.clearHalt(handle, bulk_endpoint);
-
-    int res = 0;
-    for (int index = 0; index < NUM_TRANSFERS; ++index) {
-      // Create & submit the transfer
-      TranferUserData user_data = new TranferUserData(this, index);
-      xfr[index] = LibUsb.allocTransfer(0);
-      
-      // Java GC takes care of memory freeing
-      ByteBuffer transfer_buffer = ByteBuffer.allocateDirect(TRANSFER_SIZE);
-      
-      LibUsb.fillBulkTransfer(xfr[index], handle, bulk_endpoint, transfer_buffer, transfer_completed_callback, user_data, 0);
-      res |= LibUsb.submitTransfer(xfr[index]);
-      
-      num_active_transfers++;
+  /**
+   * Starts writing all bulk transfers to the given file, see TransferRecorder.
+   */
+  protected void start_recording(TransferRecorder recorder) throws IOException {
+    stop_recording();
+    this.recorder = recorder;
+  }
+  
+  // closes the recording, throws if writing it failed
+  protected void stop_recording() throws IOException {
+    TransferRecorder recorder = this.recorder;
+    if(recorder != null){
+      this.recorder = null;
+      recorder.close();
     }
-
-    last_pts = 0;
-    last_fid = 0;
-
-    PS3Eye.usb.cameraStarted();
-
-    return res == 0;
   }
   
 
 
-  private void frame_add(gspca_packet_type packet_type, byte[] src, int src_ptr, int len) {
+  private void frame_add(gspca_packet_type packet_type, ByteBuffer src, int src_ptr, int len) {
     if (packet_type == gspca_packet_type.FIRST_PACKET) {
       cur_frame_data_len = 0;
     } else {
@@ -268,10 +164,10 @@ public class URBDesc {
     // append the packet to the frame buffer
     if (len > 0) {
       if (cur_frame_data_len + len > frame_size) {
+        frame_queue.stats.inc(Statistics.Counter.SIZE_MISMATCHES);
         packet_type = gspca_packet_type.DISCARD_PACKET;
         cur_frame_data_len = 0;
       } else {
-        byte[] dst = frame_queue.frame_buffer;
         int dst_ptr = cur_frame_start + cur_frame_data_len;
 //        try {
 ////          Thread.sleep(2);
@@ -281,16 +177,33 @@ public class URBDesc {
 //        }
         
 //        for(int i = 0; i < 10000; i++)
-        System.arraycopy(src, src_ptr, dst, dst_ptr, len);
+        // the only copy of the payload, straight from the transfer buffer
+        if(frame_dst != null){
+          // direct to direct
+          int src_limit = src.limit();
+          src.limit(src_ptr + len).position(src_ptr);
+          frame_dst.position(dst_ptr);
+          frame_dst.put(src);
+          src.limit(src_limit);
+        } else {
+          src.position(src_ptr);
+          src.get(frame_queue.frame_buffer, dst_ptr, len);
+        }
         cur_frame_data_len += len;
       }
     }
 
+    // a frame in progress is lost
+    if (packet_type == gspca_packet_type.DISCARD_PACKET && 
+       (last_packet_type == gspca_packet_type.FIRST_PACKET || last_packet_type == gspca_packet_type.INTER_PACKET)) {
+      frame_queue.Discard();
+    }
+
     last_packet_type = packet_type;
 
     if (packet_type == gspca_packet_type.LAST_PACKET) {
       cur_frame_data_len = 0;
-      cur_frame_start = frame_queue.Enqueue();
+      cur_frame_start = frame_queue.Enqueue(cur_frame_pts, transfer_time);
 //      System.out.printf("URBDesc.frame_add frame completed %d\n", cur_frame_start);
     }
   }
@@ -299,21 +212,21 @@ public class URBDesc {
   
   
   
-  private final byte[][] transfer_buffer_tmp = new byte[NUM_TRANSFERS][TRANSFER_SIZE];
-  
-  
-  private void pkt_scan(Transfer xfr) {
-    
-    ByteBuffer buffer = xfr.buffer(); 
-    int len = xfr.actualLength();
+  // Parses the payloads of a completed transfer directly on its (direct) 
+  // buffer. Header fields are read with absolute gets, payload data is only
+  // copied once, in frame_add().
+  // time is the System.nanoTime() at which the transfer completed, frames 
+  // ending in it are stamped with it, also if it is parsed later on a worker.
+  protected void pkt_scan(ByteBuffer data, int len, long time) {
     
-    TranferUserData userdata = (TranferUserData) xfr.userData();
-    
-    // get data from bytebuffer to local array
-    byte[] data = transfer_buffer_tmp[userdata.idx];
-    buffer.get(data);
-    buffer.rewind();
+    Statistics stats = frame_queue.stats;
+    stats.add(Statistics.Counter.BYTES_RECEIVED, len);
+    transfer_time = time;
     
+    TransferRecorder recorder = this.recorder;
+    if(recorder != null && !recorder.write(data, len, time) && recorder.getFailure() == null){
+      stats.inc(Statistics.Counter.RECORDER_DROPPED);
+    }
     
     final int payload_len = 2048; // bulk type
     int this_pts = 0;
@@ -324,6 +237,7 @@ public class URBDesc {
     do {
       
       len = Math.min(remaining_len, payload_len);
+      stats.inc(Statistics.Counter.PAYLOADS);
 
       SCAN_NEXT: 
       {
@@ -337,38 +251,43 @@ public class URBDesc {
           // of bytes.
 
           // Verify UVC header. Header length is always 12
-          if ((data[ptr+0]&0xFF) != 12 || len < 12) {
+          if ((data.get(ptr+0)&0xFF) != 12 || len < 12) {
 //            System.out.printf("URBDesc.pkt_scan: bad header\n");
+            stats.inc(Statistics.Counter.BAD_HEADERS);
             break DISCARD;
           }
 
           // Check errors
-          if (((data[ptr+1]&0xFF) & UVC_STREAM_ERR) != 0) {
+          if (((data.get(ptr+1)&0xFF) & UVC_STREAM_ERR) != 0) {
 //            System.out.printf("URBDesc.pkt_scan: payload error\n");
+            stats.inc(Statistics.Counter.STREAM_ERRORS);
             break DISCARD;
           }
 
           // Extract PTS and FID
-          if (((data[ptr+1]&0xFF) & UVC_STREAM_PTS) == 0) {
+          if (((data.get(ptr+1)&0xFF) & UVC_STREAM_PTS) == 0) {
 //            System.out.printf("URBDesc.pkt_scan: PTS not present\n");
+            stats.inc(Statistics.Counter.BAD_HEADERS);
             break DISCARD;
           }
 
-          this_pts = ((data[ptr+5]&0xFF) << 24) | ((data[ptr+4]&0xFF) << 16) | ((data[ptr+3]&0xFF) << 8) | (data[ptr+2]&0xFF);
-          this_fid = ((data[ptr+1]&0xFF) & UVC_STREAM_FID) != 0 ? 1 : 0;
+          this_pts = ((data.get(ptr+5)&0xFF) << 24) | ((data.get(ptr+4)&0xFF) << 16) | ((data.get(ptr+3)&0xFF) << 8) | (data.get(ptr+2)&0xFF);
+          this_fid = ((data.get(ptr+1)&0xFF) & UVC_STREAM_FID) != 0 ? 1 : 0;
 
           // If PTS or FID has changed, start a new frame.
           if (this_pts != last_pts || this_fid != last_fid) {
-            if (last_packet_type == gspca_packet_type.INTER_PACKET) {
+            if (last_packet_type == gspca_packet_type.FIRST_PACKET || last_packet_type == gspca_packet_type.INTER_PACKET) {
               // The last frame was incomplete, so don't keep it or we will glitch
               frame_add(gspca_packet_type.DISCARD_PACKET, null, 0, 0);
             }
             last_pts = this_pts;
             last_fid = this_fid;
+            cur_frame_pts = this_pts;
             frame_add(gspca_packet_type.FIRST_PACKET, data, ptr + 12, len - 12);
-          } else if (((data[ptr+1]&0xFF) & UVC_STREAM_EOF) != 0) { // If this packet is marked as EOF, end the frame
+          } else if (((data.get(ptr+1)&0xFF) & UVC_STREAM_EOF) != 0) { // If this packet is marked as EOF, end the frame
             last_pts = 0;
             if (cur_frame_data_len + len - 12 != frame_size) {
+              stats.inc(Statistics.Counter.SIZE_MISMATCHES);
               break DISCARD;
             }
             frame_add(gspca_packet_type.LAST_PACKET, data, ptr + 12, len - 12);
@@ -26,6 +26,9 @@
 package com.thomasdiewald.ps3eye;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.usb4java.Context;
 import org.usb4java.Device;
@@ -47,6 +50,9 @@ public class USB{
   boolean  exit_signaled;
   int      active_camera_count;
   
+  // shared by all cameras in PS3Eye.EventMode.POOLED
+  ExecutorService worker_pool;
+  
   
   public USB(){
     init(LibUsb.LOG_LEVEL_INFO);
@@ -188,6 +194,25 @@ public class USB{
   }
 
 
+  /**
+   * Pool of worker threads, one per core, that parse the transfers of the 
+   * cameras in PS3Eye.EventMode.POOLED.
+   */
+  synchronized protected ExecutorService getWorkerPool(){
+    if(worker_pool == null){
+      worker_pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        int count = 0;
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "PS3EyeDriver Worker Thread " + count++);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return worker_pool;
+  }
+
+
   private class TranferThread implements Runnable {
     public void run() {
        while (!exit_signaled){
@@ -199,6 +224,12 @@ public class USB{
   
   
   public void release(){
+    synchronized(this){
+      if(worker_pool != null){
+        worker_pool.shutdown();
+        worker_pool = null;
+      }
+    }
     if(context != null){
       LibUsb.exit(context);
       context = null;